@@ -0,0 +1,402 @@
+package org.pinwheel.agility.cache;
+
+import android.text.TextUtils;
+
+import org.pinwheel.agility.util.callback.Action1;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Disk cache opened on a background thread. Until it is ready, writes and removes are
+ * queued in memory and replayed in order after open, reads are served from the queue only.
+ * A delete before it is ready drops the queue, the opened cache is deleted and opened again
+ * empty, then the writes queued after the delete are replayed.
+ *
+ * @author dnwang
+ */
+public class AsyncDiskCache extends DiskCache {
+
+    /**
+     * Queued bytes bound, the eldest queued writes turn into removes when it is exceeded
+     */
+    private static final long MAX_QUEUED = 4 * 1024 * 1024;// 4M
+    /**
+     * Marks a queued remove
+     */
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    private final LinkedHashMap<String, byte[]> queued;
+    private long queuedBytes;
+    private boolean bloomFilterEnabled;
+    private boolean released;
+    // delete() before ready, not done by the open thread yet
+    private boolean deleted;
+    private final List<Action1<DiskCache>> listeners;
+
+    private volatile DiskCache target;
+    private final FutureTask<DiskCache> future;
+
+    public AsyncDiskCache(Type type, File path, int version, int cacheSize, boolean writeBehind) {
+        this(type, path, version, cacheSize, writeBehind, true);
+    }
+
+    /**
+     * @see DiskCache#open(Type, File, int, int, boolean, boolean)
+     */
+    public AsyncDiskCache(final Type type, final File path, final int version, final int cacheSize,
+                          final boolean writeBehind, final boolean binaryJournal) {
+        super();
+        this.queued = new LinkedHashMap<>();
+        this.listeners = new ArrayList<>(2);
+        this.future = new FutureTask<>(new Callable<DiskCache>() {
+            @Override
+            public DiskCache call() throws Exception {
+                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                return onOpen(type, path, version, cacheSize, writeBehind, binaryJournal);
+            }
+        });
+        Thread thread = new Thread(future, "DiskCache-open");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isReady() {
+        return target != null;
+    }
+
+    /**
+     * @return done once the disk cache is opened and queued operations are replayed
+     */
+    public Future<DiskCache> getFuture() {
+        return future;
+    }
+
+    /**
+     * Called on the open thread, or right now if it is ready already.
+     */
+    public void addOnReadyListener(Action1<DiskCache> listener) {
+        if (listener == null) {
+            return;
+        }
+        DiskCache cache;
+        synchronized (queued) {
+            cache = target;
+            if (cache == null) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.call(cache);
+    }
+
+    private DiskCache onOpen(Type type, File path, int version, int cacheSize, boolean writeBehind, boolean binaryJournal) {
+        DiskCache cache = DiskCache.open(type, path, version, cacheSize, writeBehind, binaryJournal);
+        boolean bloomFilter;
+        synchronized (queued) {
+            bloomFilter = bloomFilterEnabled;
+        }
+        cache.setBloomFilterEnabled(bloomFilter);
+        boolean closed;
+        while (true) {
+            List<Map.Entry<String, byte[]>> batch = null;
+            final boolean wipe;
+            synchronized (queued) {
+                wipe = deleted;
+                deleted = false;
+                if (!wipe) {
+                    if (queued.isEmpty()) {
+                        closed = released;
+                        if (!closed) {
+                            // replayed puts were counted when queued
+                            cache.stats = stats;
+                            target = cache;
+                        }
+                        break;
+                    }
+                    // copied, a queued write may turn into a remove meanwhile
+                    batch = new ArrayList<>(queued.size());
+                    for (Map.Entry<String, byte[]> entry : queued.entrySet()) {
+                        batch.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                    }
+                }
+            }
+            if (wipe) {
+                // the queue was dropped by delete(), what is queued now came after it
+                cache.delete();
+                cache = DiskCache.open(type, path, version, cacheSize, writeBehind, binaryJournal);
+                cache.setBloomFilterEnabled(bloomFilter);
+                continue;
+            }
+            // replay out of lock, queued data still readable meanwhile
+            for (Map.Entry<String, byte[]> entry : batch) {
+                if (entry.getValue() == TOMBSTONE) {
+                    cache.remove(entry.getKey());
+                } else {
+                    cache.setCache(entry.getKey(), new ByteArrayInputStream(entry.getValue()));
+                }
+            }
+            synchronized (queued) {
+                for (Map.Entry<String, byte[]> entry : batch) {
+                    if (queued.get(entry.getKey()) == entry.getValue()) {
+                        queued.remove(entry.getKey());
+                        queuedBytes -= entry.getValue().length;
+                    }
+                }
+            }
+        }
+        if (closed) {
+            cache.release();
+            return null;
+        }
+        List<Action1<DiskCache>> callbacks;
+        synchronized (queued) {
+            if (bloomFilter != bloomFilterEnabled) {
+                cache.setBloomFilterEnabled(bloomFilterEnabled);
+            }
+            callbacks = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+        for (Action1<DiskCache> listener : callbacks) {
+            listener.call(cache);
+        }
+        return cache;
+    }
+
+    private void enqueue(String key, byte[] data) {
+        byte[] old = queued.remove(key);
+        if (old != null) {
+            queuedBytes -= old.length;
+        }
+        queued.put(key, data);
+        queuedBytes += data.length;
+        Iterator<Map.Entry<String, byte[]>> iterator = queued.entrySet().iterator();
+        while (queuedBytes > MAX_QUEUED && iterator.hasNext()) {
+            Map.Entry<String, byte[]> eldest = iterator.next();
+            if (eldest.getValue() != TOMBSTONE) {
+                queuedBytes -= eldest.getValue().length;
+                // removed on open, an older value on disk must not come back as current
+                eldest.setValue(TOMBSTONE);
+            }
+        }
+    }
+
+    @Override
+    @Deprecated
+    public boolean isContains(String key) {
+        return contains(key);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        DiskCache cache = target;
+        if (cache != null) {
+            return cache.contains(key);
+        }
+        if (TextUtils.isEmpty(key)) {
+            return false;
+        }
+        synchronized (queued) {
+            if (target == null) {
+                byte[] data = queued.get(key);
+                return data != null && data != TOMBSTONE;
+            }
+        }
+        return target.contains(key);
+    }
+
+    @Override
+    public InputStream getCache(String key) {
+        DiskCache cache = target;
+        if (cache != null) {
+            return cache.getCache(key);
+        }
+        return getQueued(key, false);
+    }
+
+    @Override
+    public InputStream peek(String key) {
+        DiskCache cache = target;
+        if (cache != null) {
+            return cache.peek(key);
+        }
+        return getQueued(key, true);
+    }
+
+    private InputStream getQueued(String key, boolean peek) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        synchronized (queued) {
+            if (target == null) {
+                byte[] data = queued.get(key);
+                InputStream inputStream = data == null || data == TOMBSTONE ? null : new ByteArrayInputStream(data);
+                if (!peek) {
+                    if (inputStream != null) {
+                        stats.recordHit();
+                    } else {
+                        stats.recordMiss();
+                    }
+                }
+                return inputStream;
+            }
+        }
+        return peek ? target.peek(key) : target.getCache(key);
+    }
+
+    @Override
+    public List<String> keys() {
+        DiskCache cache = target;
+        if (cache != null) {
+            return cache.keys();
+        }
+        synchronized (queued) {
+            if (target == null) {
+                List<String> keys = new ArrayList<>(queued.size());
+                for (Map.Entry<String, byte[]> entry : queued.entrySet()) {
+                    if (entry.getValue() != TOMBSTONE) {
+                        keys.add(entry.getKey());
+                    }
+                }
+                return keys;
+            }
+        }
+        return target.keys();
+    }
+
+    @Override
+    public void setBloomFilterEnabled(boolean enable) {
+        synchronized (queued) {
+            bloomFilterEnabled = enable;
+            if (target == null) {
+                return;
+            }
+        }
+        target.setBloomFilterEnabled(enable);
+    }
+
+    @Override
+    public void setCache(String key, InputStream inputStream) {
+        DiskCache cache = target;
+        if (cache != null) {
+            cache.setCache(key, inputStream);
+            return;
+        }
+        if (TextUtils.isEmpty(key) || inputStream == null) {
+            return;
+        }
+        byte[] data = readFully(inputStream);
+        if (data == null) {
+            return;
+        }
+        synchronized (queued) {
+            if (target == null) {
+                if (!released) {
+                    enqueue(key, data);
+                    stats.recordPut();
+                }
+                return;
+            }
+        }
+        target.setCache(key, new ByteArrayInputStream(data));
+    }
+
+    @Override
+    public void setCaches(Map<String, byte[]> caches) {
+        DiskCache cache = target;
+        if (cache != null) {
+            cache.setCaches(caches);
+            return;
+        }
+        if (caches == null) {
+            return;
+        }
+        synchronized (queued) {
+            if (target == null) {
+                if (!released) {
+                    for (Map.Entry<String, byte[]> entry : caches.entrySet()) {
+                        if (!TextUtils.isEmpty(entry.getKey()) && entry.getValue() != null) {
+                            enqueue(entry.getKey(), entry.getValue());
+                            stats.recordPut();
+                        }
+                    }
+                }
+                return;
+            }
+        }
+        target.setCaches(caches);
+    }
+
+    @Override
+    public void remove(String key) {
+        DiskCache cache = target;
+        if (cache != null) {
+            cache.remove(key);
+            return;
+        }
+        if (TextUtils.isEmpty(key)) {
+            return;
+        }
+        synchronized (queued) {
+            if (target == null) {
+                if (!released) {
+                    enqueue(key, TOMBSTONE);
+                }
+                return;
+            }
+        }
+        target.remove(key);
+    }
+
+    @Override
+    public long size() {
+        DiskCache cache = target;
+        if (cache != null) {
+            return cache.size();
+        }
+        synchronized (queued) {
+            return queuedBytes;
+        }
+    }
+
+    @Override
+    public void delete() {
+        synchronized (queued) {
+            if (target == null) {
+                // deleted and opened again by the open thread, later writes are queued for the new one
+                deleted = true;
+                queued.clear();
+                queuedBytes = 0;
+                return;
+            }
+        }
+        target.delete();
+    }
+
+    @Override
+    public void release() {
+        synchronized (queued) {
+            if (target == null) {
+                // queued data is still written, then released by the open thread
+                released = true;
+                return;
+            }
+        }
+        target.release();
+    }
+
+}
@@ -0,0 +1,442 @@
+package org.pinwheel.agility.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Compact tagged binary format. Common value types (boxed primitives, String, byte[]
+ * and the standard collections of them) are written natively. An object holding any other
+ * {@link Serializable}, or a collection reachable twice, is written whole by plain java
+ * serialization, which keeps shared references and cycles.
+ * Data written by plain {@link ObjectOutputStream} is still readable.
+ *
+ * @author dnwang
+ */
+public class BinaryObjectCodec implements ObjectCodec {
+
+    private static final byte MAGIC = 0x5A;
+
+    private static final byte T_NULL = 0;
+    private static final byte T_STRING = 1;
+    private static final byte T_INT = 2;
+    private static final byte T_LONG = 3;
+    private static final byte T_BOOLEAN = 4;
+    private static final byte T_DOUBLE = 5;
+    private static final byte T_FLOAT = 6;
+    private static final byte T_SHORT = 7;
+    private static final byte T_BYTE = 8;
+    private static final byte T_CHAR = 9;
+    private static final byte T_BYTES = 10;
+    private static final byte T_ARRAY_LIST = 11;
+    private static final byte T_LINKED_LIST = 12;
+    private static final byte T_HASH_SET = 13;
+    private static final byte T_HASH_MAP = 14;
+    private static final byte T_LINKED_HASH_MAP = 15;
+
+    private static final byte STREAM_MAGIC_0 = (byte) 0xAC;
+    private static final byte STREAM_MAGIC_1 = (byte) 0xED;
+
+    @Override
+    public byte[] encode(Object obj) throws IOException {
+        if (!isNative(obj, new IdentityHashMap<Object, Boolean>())) {
+            return writeSerializable(obj);
+        }
+        Output out = new Output(64);
+        out.writeByte(MAGIC);
+        write(out, obj);
+        return out.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes, int offset, int length) throws IOException {
+        if (bytes == null || length <= 0) {
+            return null;
+        }
+        if (length >= 2 && bytes[offset] == STREAM_MAGIC_0 && bytes[offset + 1] == STREAM_MAGIC_1) {
+            // written by ObjectOutputStream (old cache data)
+            return readSerializable(bytes, offset, length);
+        }
+        Input in = new Input(bytes, offset, length);
+        if (in.readByte() != MAGIC) {
+            throw new IOException("unknown data format");
+        }
+        return read(in);
+    }
+
+    /**
+     * @param seen collections on the way, one seen again is shared or contains itself
+     * @return true if the whole graph can be written natively
+     */
+    private static boolean isNative(Object obj, IdentityHashMap<Object, Boolean> seen) {
+        if (obj == null) {
+            return true;
+        }
+        final Class<?> cls = obj.getClass();
+        if (cls == String.class || cls == Integer.class || cls == Long.class || cls == Boolean.class
+                || cls == Double.class || cls == Float.class || cls == Short.class || cls == Byte.class
+                || cls == Character.class || cls == byte[].class) {
+            return true;
+        }
+        if (cls == ArrayList.class || cls == LinkedList.class || cls == HashSet.class) {
+            if (seen.put(obj, Boolean.TRUE) != null) {
+                return false;
+            }
+            for (Object item : (Collection) obj) {
+                if (!isNative(item, seen)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (cls == HashMap.class || cls == LinkedHashMap.class) {
+            if (seen.put(obj, Boolean.TRUE) != null) {
+                return false;
+            }
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) obj).entrySet()) {
+                if (!isNative(entry.getKey(), seen) || !isNative(entry.getValue(), seen)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void write(Output out, Object obj) throws IOException {
+        if (obj == null) {
+            out.writeByte(T_NULL);
+            return;
+        }
+        final Class<?> cls = obj.getClass();
+        if (cls == String.class) {
+            out.writeByte(T_STRING);
+            out.writeString((String) obj);
+        } else if (cls == Integer.class) {
+            out.writeByte(T_INT);
+            out.writeVarLong(zigzag((Integer) obj));
+        } else if (cls == Long.class) {
+            out.writeByte(T_LONG);
+            out.writeVarLong(zigzag((Long) obj));
+        } else if (cls == Boolean.class) {
+            out.writeByte(T_BOOLEAN);
+            out.writeByte((Boolean) obj ? 1 : 0);
+        } else if (cls == Double.class) {
+            out.writeByte(T_DOUBLE);
+            out.writeFixedLong(Double.doubleToLongBits((Double) obj));
+        } else if (cls == Float.class) {
+            out.writeByte(T_FLOAT);
+            out.writeFixedInt(Float.floatToIntBits((Float) obj));
+        } else if (cls == Short.class) {
+            out.writeByte(T_SHORT);
+            out.writeVarLong(zigzag((Short) obj));
+        } else if (cls == Byte.class) {
+            out.writeByte(T_BYTE);
+            out.writeByte((Byte) obj);
+        } else if (cls == Character.class) {
+            out.writeByte(T_CHAR);
+            out.writeVarLong((Character) obj);
+        } else if (cls == byte[].class) {
+            byte[] bytes = (byte[]) obj;
+            out.writeByte(T_BYTES);
+            out.writeVarLong(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        } else if (cls == ArrayList.class) {
+            out.writeByte(T_ARRAY_LIST);
+            writeCollection(out, (Collection) obj);
+        } else if (cls == LinkedList.class) {
+            out.writeByte(T_LINKED_LIST);
+            writeCollection(out, (Collection) obj);
+        } else if (cls == HashSet.class) {
+            out.writeByte(T_HASH_SET);
+            writeCollection(out, (Collection) obj);
+        } else if (cls == HashMap.class) {
+            out.writeByte(T_HASH_MAP);
+            writeMap(out, (Map) obj);
+        } else if (cls == LinkedHashMap.class) {
+            out.writeByte(T_LINKED_HASH_MAP);
+            writeMap(out, (Map) obj);
+        } else {
+            throw new IOException("not native: " + cls.getName());
+        }
+    }
+
+    private void writeCollection(Output out, Collection collection) throws IOException {
+        out.writeVarLong(collection.size());
+        for (Object item : collection) {
+            write(out, item);
+        }
+    }
+
+    private void writeMap(Output out, Map<?, ?> map) throws IOException {
+        out.writeVarLong(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(out, entry.getKey());
+            write(out, entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object read(Input in) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case T_NULL:
+                return null;
+            case T_STRING:
+                return in.readString();
+            case T_INT:
+                return (int) unzigzag(in.readVarLong());
+            case T_LONG:
+                return unzigzag(in.readVarLong());
+            case T_BOOLEAN:
+                return in.readByte() != 0;
+            case T_DOUBLE:
+                return Double.longBitsToDouble(in.readFixedLong());
+            case T_FLOAT:
+                return Float.intBitsToFloat(in.readFixedInt());
+            case T_SHORT:
+                return (short) unzigzag(in.readVarLong());
+            case T_BYTE:
+                return in.readByte();
+            case T_CHAR:
+                return (char) in.readVarLong();
+            case T_BYTES:
+                return in.readBytes(in.readLength());
+            case T_ARRAY_LIST: {
+                int size = in.readLength();
+                return readCollection(in, new ArrayList(size), size);
+            }
+            case T_LINKED_LIST:
+                return readCollection(in, new LinkedList(), in.readLength());
+            case T_HASH_SET: {
+                int size = in.readLength();
+                return readCollection(in, new HashSet(Math.max(16, size * 4 / 3 + 1)), size);
+            }
+            case T_HASH_MAP: {
+                int size = in.readLength();
+                return readMap(in, new HashMap(Math.max(16, size * 4 / 3 + 1)), size);
+            }
+            case T_LINKED_HASH_MAP: {
+                int size = in.readLength();
+                return readMap(in, new LinkedHashMap(Math.max(16, size * 4 / 3 + 1)), size);
+            }
+            default:
+                throw new IOException("unknown tag: " + tag);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection readCollection(Input in, Collection collection, int size) throws IOException {
+        for (int i = 0; i < size; i++) {
+            collection.add(read(in));
+        }
+        return collection;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map readMap(Input in, Map map, int size) throws IOException {
+        for (int i = 0; i < size; i++) {
+            Object key = read(in);
+            map.put(key, read(in));
+        }
+        return map;
+    }
+
+    private static byte[] writeSerializable(Object obj) throws IOException {
+        ByteArrayOutputStream byteOutStream = new ByteArrayOutputStream(256);
+        ObjectOutputStream objOutStream = new ObjectOutputStream(byteOutStream);
+        try {
+            objOutStream.writeObject(obj);
+            objOutStream.flush();
+            return byteOutStream.toByteArray();
+        } finally {
+            objOutStream.close();
+        }
+    }
+
+    private static Object readSerializable(byte[] bytes, int offset, int length) throws IOException {
+        ObjectInputStream objInStream = new ObjectInputStream(new ByteArrayInputStream(bytes, offset, length));
+        try {
+            return objInStream.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e.getMessage());
+        } finally {
+            objInStream.close();
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Growable output buffer, no synchronization.
+     */
+    private static final class Output {
+        private byte[] buff;
+        private int count;
+
+        Output(int capacity) {
+            buff = new byte[capacity];
+        }
+
+        private void ensure(int more) {
+            if (count + more > buff.length) {
+                byte[] newBuff = new byte[Math.max(buff.length << 1, count + more)];
+                System.arraycopy(buff, 0, newBuff, 0, count);
+                buff = newBuff;
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buff[count++] = (byte) b;
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buff, count, length);
+            count += length;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buff[count++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buff[count++] = (byte) value;
+        }
+
+        void writeFixedInt(int value) {
+            ensure(4);
+            for (int i = 24; i >= 0; i -= 8) {
+                buff[count++] = (byte) (value >>> i);
+            }
+        }
+
+        void writeFixedLong(long value) {
+            ensure(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                buff[count++] = (byte) (value >>> i);
+            }
+        }
+
+        void writeString(String value) throws UnsupportedEncodingException {
+            byte[] bytes = value.getBytes("UTF-8");
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            byte[] result = new byte[count];
+            System.arraycopy(buff, 0, result, 0, count);
+            return result;
+        }
+    }
+
+    /**
+     * Bounded reader of byte array.
+     */
+    private static final class Input {
+        private final byte[] buff;
+        private final int limit;
+        private int position;
+
+        Input(byte[] buff, int offset, int length) {
+            this.buff = buff;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+
+        private void require(int size) throws IOException {
+            if (size < 0 || position + size > limit) {
+                throw new IOException("unexpected end of data");
+            }
+        }
+
+        byte readByte() throws IOException {
+            require(1);
+            return buff[position++];
+        }
+
+        int skip(int length) throws IOException {
+            require(length);
+            int begin = position;
+            position += length;
+            return begin;
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            int begin = skip(length);
+            byte[] result = new byte[length];
+            System.arraycopy(buff, begin, result, 0, length);
+            return result;
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+
+        int readLength() throws IOException {
+            long length = readVarLong();
+            if (length < 0 || length > limit - position) {
+                throw new IOException("illegal length: " + length);
+            }
+            return (int) length;
+        }
+
+        int readFixedInt() throws IOException {
+            require(4);
+            int result = 0;
+            for (int i = 0; i < 4; i++) {
+                result = (result << 8) | (buff[position++] & 0xFF);
+            }
+            return result;
+        }
+
+        long readFixedLong() throws IOException {
+            require(8);
+            long result = 0;
+            for (int i = 0; i < 8; i++) {
+                result = (result << 8) | (buff[position++] & 0xFF);
+            }
+            return result;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+            int begin = skip(length);
+            return new String(buff, begin, length, "UTF-8");
+        }
+    }
+
+}
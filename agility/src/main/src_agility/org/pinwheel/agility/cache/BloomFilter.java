@@ -0,0 +1,89 @@
+package org.pinwheel.agility.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Lock-free bloom filter of string keys, about 1% false positive at expected size.
+ *
+ * @author dnwang
+ */
+final class BloomFilter {
+
+    private static final int HASH_COUNT = 7;
+    private static final int BITS_PER_KEY = 10;
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int capacity;
+    private final AtomicInteger count;
+
+    BloomFilter(int expectedSize) {
+        this.capacity = Math.max(64, expectedSize);
+        long words = ((long) capacity * BITS_PER_KEY + 63) >>> 6;
+        this.bits = new AtomicLongArray((int) words);
+        this.bitCount = words << 6;
+        this.count = new AtomicInteger();
+    }
+
+    /**
+     * Only a key that sets a new bit is counted, a key put again is not.
+     *
+     * @return false if the filter is saturated and should be rebuilt
+     */
+    boolean put(String key) {
+        final long hash64 = hash(key);
+        final int h1 = (int) hash64;
+        final int h2 = (int) (hash64 >>> 32);
+        boolean added = false;
+        for (int i = 1; i <= HASH_COUNT; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            final int word = (int) (index >>> 6);
+            final long mask = 1L << index;
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(word, old, old | mask));
+            added |= (old & mask) == 0;
+        }
+        return !added || count.incrementAndGet() <= capacity;
+    }
+
+    boolean mightContain(String key) {
+        final long hash64 = hash(key);
+        final int h1 = (int) hash64;
+        final int h2 = (int) (hash64 >>> 32);
+        for (int i = 1; i <= HASH_COUNT; i++) {
+            long index = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    private static long hash(String key) {
+        // 64-bit FNV-1a then a final mix
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, len = key.length(); i < len; i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+}
@@ -0,0 +1,266 @@
+package org.pinwheel.agility.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Lock-free cache counters and latency histograms, read by {@link #snapshot()}.
+ *
+ * @author dnwang
+ */
+public final class CacheStats {
+
+    public interface Listener {
+        void onPublish(Snapshot snapshot);
+    }
+
+    private final String name;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong putCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final AtomicLong loadFailureCount = new AtomicLong();
+    private final Histogram loadLatency = new Histogram();
+    private final Histogram decodeLatency = new Histogram();
+
+    private volatile Listener listener;
+
+    public CacheStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void recordHit() {
+        hitCount.incrementAndGet();
+    }
+
+    public void recordMiss() {
+        missCount.incrementAndGet();
+    }
+
+    public void recordPut() {
+        putCount.incrementAndGet();
+    }
+
+    public void recordEviction(long bytes) {
+        evictionCount.incrementAndGet();
+        evictedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param nanos time of reading the data from disk or network
+     */
+    public void recordLoadSuccess(long nanos) {
+        loadLatency.record(nanos);
+    }
+
+    public void recordLoadFailure(long nanos) {
+        loadFailureCount.incrementAndGet();
+        loadLatency.record(nanos);
+    }
+
+    /**
+     * @param nanos time of decoding data to object or bitmap
+     */
+    public void recordDecode(long nanos) {
+        decodeLatency.record(nanos);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Take a snapshot and hand it to the listener, if any.
+     */
+    public Snapshot publish() {
+        Snapshot snapshot = snapshot();
+        Listener listener = this.listener;
+        if (listener != null) {
+            listener.onPublish(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Bucket i counts latency in [2^(i-1), 2^i) micros, the last one counts all longer.
+     */
+    private static final class Histogram {
+        static final int BUCKET_COUNT = 26;// up to 33s
+
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+        final AtomicLong totalNanos = new AtomicLong();
+
+        void record(long nanos) {
+            final long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+            final int index = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(index);
+            totalNanos.addAndGet(nanos);
+        }
+
+        long[] copy() {
+            long[] copy = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                copy[i] = buckets.get(i);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Counters at one moment. Counters are read one by one, not as a whole.
+     */
+    public static final class Snapshot {
+        private final String name;
+        private final long hitCount;
+        private final long missCount;
+        private final long putCount;
+        private final long evictionCount;
+        private final long evictedBytes;
+        private final long loadFailureCount;
+        private final long[] loadLatency;
+        private final long loadTotalNanos;
+        private final long[] decodeLatency;
+        private final long decodeTotalNanos;
+
+        private Snapshot(CacheStats stats) {
+            this.name = stats.name;
+            this.hitCount = stats.hitCount.get();
+            this.missCount = stats.missCount.get();
+            this.putCount = stats.putCount.get();
+            this.evictionCount = stats.evictionCount.get();
+            this.evictedBytes = stats.evictedBytes.get();
+            this.loadFailureCount = stats.loadFailureCount.get();
+            this.loadLatency = stats.loadLatency.copy();
+            this.loadTotalNanos = stats.loadLatency.totalNanos.get();
+            this.decodeLatency = stats.decodeLatency.copy();
+            this.decodeTotalNanos = stats.decodeLatency.totalNanos.get();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public float getHitRate() {
+            final long requests = hitCount + missCount;
+            return requests == 0 ? 0 : (float) hitCount / requests;
+        }
+
+        public long getPutCount() {
+            return putCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public long getEvictedBytes() {
+            return evictedBytes;
+        }
+
+        public long getLoadCount() {
+            return count(loadLatency);
+        }
+
+        public long getLoadFailureCount() {
+            return loadFailureCount;
+        }
+
+        public long getAverageLoadMicros() {
+            final long count = getLoadCount();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(loadTotalNanos / count);
+        }
+
+        /**
+         * @param percent 0 ~ 1
+         * @return upper bound in micros of the bucket holding the percentile
+         */
+        public long getLoadLatencyMicros(float percent) {
+            return percentile(loadLatency, percent);
+        }
+
+        public long getDecodeCount() {
+            return count(decodeLatency);
+        }
+
+        public long getAverageDecodeMicros() {
+            final long count = getDecodeCount();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(decodeTotalNanos / count);
+        }
+
+        /**
+         * @param percent 0 ~ 1
+         * @return upper bound in micros of the bucket holding the percentile
+         */
+        public long getDecodeLatencyMicros(float percent) {
+            return percentile(decodeLatency, percent);
+        }
+
+        /**
+         * Count of each bucket, bucket i is [2^(i-1), 2^i) micros
+         */
+        public long[] getLoadLatencyBuckets() {
+            return loadLatency.clone();
+        }
+
+        public long[] getDecodeLatencyBuckets() {
+            return decodeLatency.clone();
+        }
+
+        private static long count(long[] buckets) {
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        private static long percentile(long[] buckets, float percent) {
+            final long count = count(buckets);
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(count * Math.min(1f, Math.max(0f, percent)));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == buckets.length - 1 ? Long.MAX_VALUE : 1L << i;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return name + "{hit=" + hitCount + ", miss=" + missCount + ", hitRate=" + getHitRate()
+                    + ", put=" + putCount + ", eviction=" + evictionCount + ", evictedBytes=" + evictedBytes
+                    + ", load=" + getLoadCount() + ", loadFailure=" + loadFailureCount
+                    + ", loadAvg=" + getAverageLoadMicros() + "us, loadP90<" + getLoadLatencyMicros(0.9f)
+                    + "us, decode=" + getDecodeCount() + ", decodeAvg=" + getAverageDecodeMicros()
+                    + "us, decodeP90<" + getDecodeLatencyMicros(0.9f) + "us}";
+        }
+    }
+
+}
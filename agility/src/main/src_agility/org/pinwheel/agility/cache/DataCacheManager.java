@@ -4,11 +4,33 @@ import android.content.Context;
 import android.os.Environment;
 import android.text.TextUtils;
 
+import org.pinwheel.agility.util.KeyDigest;
+import org.pinwheel.agility.util.callback.Action1;
+import org.pinwheel.agility.util.callback.Function0;
+import org.pinwheel.agility.util.callback.Function1;
+
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Copyright (C), 2015 <br>
@@ -22,14 +44,39 @@ public final class DataCacheManager {
 
     private static final int DEFAULT_MAX_DISK_CACHE = 128 * 1024 * 1024;//128M
     private static final int DEFAULT_MAX_MEMORY_CACHE = 8 * 1024 * 1024;//8M
+    private static final int DEFAULT_MAX_LIVE_CACHE = 4 * 1024 * 1024;//4M
+    private static final long EXPIRED_SWEEP_DELAY = 60 * 1000;// 1min
+    private static final long EXPIRED_SWEEP_PERIOD = 30 * 60 * 1000;// 30min
+    private static final int PARALLEL_LOAD_HELPERS = 2;
+    private static final int BACKGROUND_THREADS = 2;
+    /**
+     * Refreshes and load helpers queued at most, more are rejected
+     */
+    private static final int BACKGROUND_QUEUE_SIZE = 64;
 
     private static DataCacheManager instance = null;
 
     public static DataCacheManager getInstance(Context context) {
+        return getInstance(context, DiskCache.Type.LRU_FILE);
+    }
+
+    /**
+     * @param diskCacheType only used when the instance is created
+     */
+    public static DataCacheManager getInstance(Context context, DiskCache.Type diskCacheType) {
+        return getInstance(context, diskCacheType, false);
+    }
+
+    /**
+     * @param diskCacheType only used when the instance is created
+     * @param asyncInit     open disk cache in background, see {@link AsyncDiskCache}.
+     *                      Memory cache works at once, disk reads miss until it is ready.
+     */
+    public static DataCacheManager getInstance(Context context, DiskCache.Type diskCacheType, boolean asyncInit) {
         if (instance == null) {
             synchronized (DataCacheManager.class) {
                 if (instance == null) {
-                    instance = new DataCacheManager(context);
+                    instance = new DataCacheManager(context, diskCacheType, asyncInit);
                 }
             }
         }
@@ -37,27 +84,239 @@ public final class DataCacheManager {
     }
 
     private MemoryCache memoryCache;
+    /**
+     * Memory-only namespace of live objects
+     */
+    private MemoryCache liveCache;
+    private final Context appContext;
+    /**
+     * Optional, encoded entries between memory and disk
+     */
+    private volatile OffHeapCache offHeapCache;
     private DiskCache diskCache;
+    private final File diskCacheDir;
+    /**
+     * Optional, hot keys loaded into memory at launch
+     */
+    private volatile WarmUpManifest warmUpManifest;
+    private ObjectCodec codec;
+    private volatile KeyDigest.Mode keyMode = KeyDigest.Mode.MD5;
+
+    /**
+     * Stale-while-revalidate refresh and parallel load helpers, the expired sweep is a maintenance job
+     */
+    private final ThreadPoolExecutor backgroundExecutor;
+    private final Runnable sweepJob = new Runnable() {
+        @Override
+        public void run() {
+            clearExpiredCache();
+        }
+    };
+    private final Set<String> refreshingKeys;
+    private final CacheStats stats;
+    /**
+     * Single-flight: disk loads and getOrLoad loaders in progress, by disk key
+     */
+    private final ConcurrentHashMap<String, FutureTask<ObjectEntity>> loadingEntries;
+    private final ConcurrentHashMap<String, FutureTask<Object>> loadingObjects;
 
-    private DataCacheManager(Context context) {
-        this.diskCache = new DiskCache(getDiskCacheDir(context), 0, DEFAULT_MAX_DISK_CACHE);
+    private DataCacheManager(Context context, DiskCache.Type diskCacheType, boolean asyncInit) {
+        this.diskCacheDir = getDiskCacheDir(context, diskCacheType);
+        if (asyncInit) {
+            this.diskCache = new AsyncDiskCache(diskCacheType, diskCacheDir, 0, DEFAULT_MAX_DISK_CACHE, true);
+        } else {
+            this.diskCache = DiskCache.open(diskCacheType, diskCacheDir, 0, DEFAULT_MAX_DISK_CACHE, true);
+        }
         this.memoryCache = new MemoryCache(DEFAULT_MAX_MEMORY_CACHE);
+        // trim memory cache on memory pressure
+        this.appContext = context.getApplicationContext();
+        this.appContext.registerComponentCallbacks(memoryCache);
+        this.liveCache = new MemoryCache(DEFAULT_MAX_LIVE_CACHE);
+        this.appContext.registerComponentCallbacks(liveCache);
+        this.refreshingKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.stats = new CacheStats("DataCacheManager");
+        this.loadingEntries = new ConcurrentHashMap<>();
+        this.loadingObjects = new ConcurrentHashMap<>();
+        this.backgroundExecutor = new ThreadPoolExecutor(BACKGROUND_THREADS, BACKGROUND_THREADS, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(BACKGROUND_QUEUE_SIZE), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "DataCacheBackground-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.backgroundExecutor.allowCoreThreadTimeOut(true);
+        MaintenanceScheduler.getDefault().scheduleWithFixedDelay(sweepJob,
+                EXPIRED_SWEEP_DELAY, EXPIRED_SWEEP_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     public DiskCache getDiskCache() {
         return this.diskCache;
     }
 
+    /**
+     * Keep encoded entries in direct memory, consulted after a memory miss and before disk.
+     * A hit costs a decode but no file I/O, and the entries add no GC pressure.
+     *
+     * @param cacheSize max bytes, 0 disables it
+     */
+    public synchronized void setOffHeapCacheSize(long cacheSize) {
+        OffHeapCache old = this.offHeapCache;
+        if (old != null) {
+            appContext.unregisterComponentCallbacks(old);
+            this.offHeapCache = null;
+            old.release();
+        }
+        if (cacheSize > 0) {
+            OffHeapCache offHeapCache = new OffHeapCache(cacheSize);
+            appContext.registerComponentCallbacks(offHeapCache);
+            this.offHeapCache = offHeapCache;
+        }
+    }
+
+    /**
+     * @return null if not enabled
+     */
+    public OffHeapCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
+    /**
+     * Record the hottest keys, saved when the app is hidden and at {@link #release()}.
+     * At the next launch they are loaded from disk into memory in background, hottest first,
+     * until {@code budget} bytes are loaded. Call it once, right after {@link #getInstance}.
+     *
+     * @param maxKeys keys kept in the manifest, 0 disables it
+     * @param budget  max bytes loaded into memory at launch
+     */
+    public synchronized void enableWarmUp(int maxKeys, final long budget) {
+        if (warmUpManifest != null || maxKeys <= 0) {
+            return;
+        }
+        final WarmUpManifest manifest = new WarmUpManifest(
+                new File(diskCacheDir.getParentFile(), diskCacheDir.getName() + ".warmup"), maxKeys);
+        appContext.registerComponentCallbacks(manifest);
+        this.warmUpManifest = manifest;
+        // scheduled once the disk is open, a maintenance job must not wait for it
+        addOnDiskCacheReadyListener(new Action1<DiskCache>() {
+            @Override
+            public void call(DiskCache cache) {
+                prefetch(manifest, budget);
+            }
+        });
+    }
+
+    private void prefetch(WarmUpManifest manifest, long budget) {
+        manifest.prefetch(new Function1<Long, String>() {
+            @Override
+            public Long call(String diskKey) {
+                final MemoryCache memoryCache = DataCacheManager.this.memoryCache;
+                final DiskCache diskCache = DataCacheManager.this.diskCache;
+                if (memoryCache == null || diskCache == null || memoryCache.contains(diskKey)) {
+                    return 0L;
+                }
+                ObjectEntity value = readEntry(memoryCache, diskCache, diskKey, false);
+                return value == null || value.get() == null ? 0L : (long) value.sizeOf();
+            }
+        }, budget);
+    }
+
+    /**
+     * Set before use, entries cached with the other mode are not found.
+     * {@link KeyDigest.Mode#HASH_128} derives keys faster than the default MD5.
+     */
+    public void setKeyMode(KeyDigest.Mode keyMode) {
+        this.keyMode = (null == keyMode) ? KeyDigest.Mode.MD5 : keyMode;
+    }
+
+    /**
+     * Requests of get methods, disk load and object decode latency. See also the stats of each tier.
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Publish the stats of this manager and its memory and disk tier to their listeners.
+     */
+    public void publishStats() {
+        stats.publish();
+        final MemoryCache memoryCache = this.memoryCache;
+        if (memoryCache != null) {
+            memoryCache.getStats().publish();
+        }
+        final MemoryCache liveCache = this.liveCache;
+        if (liveCache != null) {
+            liveCache.getStats().publish();
+        }
+        final OffHeapCache offHeapCache = this.offHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.getStats().publish();
+        }
+        final DiskCache diskCache = this.diskCache;
+        if (diskCache != null) {
+            diskCache.getStats().publish();
+        }
+    }
+
+    /**
+     * @param listener called when disk cache is ready, at once if it is not {@link AsyncDiskCache}
+     */
+    public void addOnDiskCacheReadyListener(Action1<DiskCache> listener) {
+        final DiskCache cache = diskCache;
+        if (cache instanceof AsyncDiskCache) {
+            ((AsyncDiskCache) cache).addOnReadyListener(listener);
+        } else if (cache != null && listener != null) {
+            listener.call(cache);
+        }
+    }
+
     public MemoryCache getMemoryCache() {
         return this.memoryCache;
     }
 
+    /**
+     * Memory-only namespace, see {@link #setMemoryObject(String, Object, long)}
+     */
+    public MemoryCache getLiveCache() {
+        return this.liveCache;
+    }
+
+    /**
+     * Replace the object codec, null means use {@link BinaryObjectCodec}.
+     * Disk data written by other codec maybe can not be decoded.
+     *
+     * @param codec object codec
+     */
+    public void setObjectCodec(ObjectCodec codec) {
+        this.codec = codec;
+    }
+
     public synchronized static void release() {
         if (instance != null) {
+            MaintenanceScheduler.getDefault().cancel(instance.sweepJob);
+            instance.backgroundExecutor.shutdownNow();
+            final WarmUpManifest manifest = instance.warmUpManifest;
+            if (manifest != null) {
+                instance.appContext.unregisterComponentCallbacks(manifest);
+                manifest.save();
+                manifest.release();
+                instance.warmUpManifest = null;
+            }
             if (instance.memoryCache != null) {
+                instance.appContext.unregisterComponentCallbacks(instance.memoryCache);
                 instance.memoryCache.release();
                 instance.memoryCache = null;
             }
+            if (instance.liveCache != null) {
+                instance.appContext.unregisterComponentCallbacks(instance.liveCache);
+                instance.liveCache.release();
+                instance.liveCache = null;
+            }
+            instance.setOffHeapCacheSize(0);
             if (instance.diskCache != null) {
                 instance.diskCache.release();
                 instance.diskCache = null;
@@ -67,6 +326,63 @@ public final class DataCacheManager {
     }
 
     public void setObject(String key, Serializable obj) {
+        setObject(key, obj, 0);
+    }
+
+    public void setMemoryObject(String key, Object obj) {
+        setMemoryObject(key, obj, 0);
+    }
+
+    /**
+     * Memory-only: keep the live object by reference, it is never serialized nor written to disk.
+     * Its size is estimated by {@link HeapSizeEstimator}. Keys are not shared with {@link #setObject}.
+     *
+     * @param ttl time to live in millis, 0 means never expired
+     */
+    public void setMemoryObject(String key, Object obj, long ttl) {
+        final MemoryCache liveCache = this.liveCache;
+        if (TextUtils.isEmpty(key) || liveCache == null) {
+            return;
+        }
+        if (obj == null) {
+            liveCache.remove(key);
+            return;
+        }
+        LiveEntity value = new LiveEntity(obj);
+        value.setExpireTime(ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+        liveCache.setCache(key, value);
+    }
+
+    /**
+     * Expired object is removed and null is returned.
+     */
+    public Object getMemoryObject(String key) {
+        final MemoryCache liveCache = this.liveCache;
+        if (TextUtils.isEmpty(key) || liveCache == null) {
+            return null;
+        }
+        ObjectEntity value = liveCache.getCache(key);
+        if (value == null) {
+            return null;
+        }
+        if (value.isExpired()) {
+            liveCache.remove(key);
+            return null;
+        }
+        return value.get();
+    }
+
+    public void removeMemoryObject(String key) {
+        final MemoryCache liveCache = this.liveCache;
+        if (!TextUtils.isEmpty(key) && liveCache != null) {
+            liveCache.remove(key);
+        }
+    }
+
+    /**
+     * @param ttl time to live in millis, 0 means never expired
+     */
+    public void setObject(String key, Serializable obj, long ttl) {
         if (TextUtils.isEmpty(key)) {
             return;
         }
@@ -74,12 +390,148 @@ public final class DataCacheManager {
             return;
         }
         key = getDiskKey(key);
-        ObjectEntity<Serializable> value = new ObjectEntity<>();
+        ObjectEntity<Serializable> value = new ObjectEntity<>(codec);
         value.decodeFrom(obj);
+        value.setExpireTime(ttl > 0 ? System.currentTimeMillis() + ttl : 0);
         memoryCache.setCache(key, value);
-        diskCache.setCache(key, value.getInputStream());
+        final OffHeapCache offHeapCache = this.offHeapCache;
+        if (offHeapCache != null) {
+            byte[] bytes = DiskCache.readFully(value.getInputStream());
+            offHeapCache.put(key, bytes);
+            if (bytes != null) {
+                diskCache.setCache(key, new ByteArrayInputStream(bytes));
+            }
+        } else {
+            diskCache.setCache(key, value.getInputStream());
+        }
+    }
+
+    public void setObjects(Map<String, ? extends Serializable> objects) {
+        setObjects(objects, 0);
+    }
+
+    /**
+     * Cache all objects, disk data is written in one journal transaction.
+     *
+     * @param ttl time to live in millis, 0 means never expired
+     */
+    public void setObjects(Map<String, ? extends Serializable> objects, long ttl) {
+        if (objects == null || objects.isEmpty()) {
+            return;
+        }
+        final MemoryCache memoryCache = this.memoryCache;
+        final DiskCache diskCache = this.diskCache;
+        if (memoryCache == null || diskCache == null) {
+            return;
+        }
+        final OffHeapCache offHeapCache = this.offHeapCache;
+        final long expireTime = ttl > 0 ? System.currentTimeMillis() + ttl : 0;
+        Map<String, byte[]> data = new LinkedHashMap<>(objects.size());
+        for (Map.Entry<String, ? extends Serializable> entry : objects.entrySet()) {
+            if (TextUtils.isEmpty(entry.getKey()) || entry.getValue() == null) {
+                continue;
+            }
+            final String diskKey = getDiskKey(entry.getKey());
+            ObjectEntity<Serializable> value = new ObjectEntity<>(codec);
+            value.decodeFrom(entry.getValue());
+            value.setExpireTime(expireTime);
+            memoryCache.setCache(diskKey, value);
+            byte[] bytes = DiskCache.readFully(value.getInputStream());
+            if (bytes != null) {
+                data.put(diskKey, bytes);
+                if (offHeapCache != null) {
+                    offHeapCache.put(diskKey, bytes);
+                }
+            }
+        }
+        diskCache.setCaches(data);
+    }
+
+    /**
+     * Memory misses are loaded from disk in parallel, by the caller and background threads.
+     *
+     * @return key to object of the cached keys, in the order of keys
+     */
+    public Map<String, Object> getObjects(Collection<String> keys) {
+        Map<String, Object> objects = new LinkedHashMap<>();
+        if (keys == null || keys.isEmpty()) {
+            return objects;
+        }
+        final MemoryCache memoryCache = this.memoryCache;
+        final DiskCache diskCache = this.diskCache;
+        if (memoryCache == null || diskCache == null) {
+            return objects;
+        }
+        List<String> missKeys = new ArrayList<>();
+        final List<FutureTask<ObjectEntity>> missTasks = new ArrayList<>();
+        for (String key : keys) {
+            if (TextUtils.isEmpty(key) || objects.containsKey(key)) {
+                continue;
+            }
+            final String diskKey = getDiskKey(key);
+            recordAccess(diskKey);
+            ObjectEntity value = memoryCache.getCache(diskKey);
+            if (value != null) {
+                value = checkEntry(memoryCache, diskCache, diskKey, value, false);
+                if (value != null) {
+                    objects.put(key, value.get());
+                }
+                continue;
+            }
+            // keep the order of keys
+            objects.put(key, null);
+            missKeys.add(key);
+            // memory is probed already, a second probe would count the miss twice
+            missTasks.add(new FutureTask<>(new Callable<ObjectEntity>() {
+                @Override
+                public ObjectEntity call() throws Exception {
+                    return checkEntry(memoryCache, diskCache, diskKey,
+                            loadEntry(memoryCache, diskCache, diskKey, false), false);
+                }
+            }));
+        }
+        if (!missTasks.isEmpty()) {
+            final AtomicInteger next = new AtomicInteger();
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < missTasks.size()) {
+                        missTasks.get(i).run();
+                    }
+                }
+            };
+            // helpers are optional, tasks not taken by them are run by the caller
+            for (int i = Math.min(PARALLEL_LOAD_HELPERS, missTasks.size() - 1); i > 0; i--) {
+                try {
+                    backgroundExecutor.execute(worker);
+                } catch (RejectedExecutionException e) {
+                    break;// released
+                }
+            }
+            worker.run();
+            for (int i = 0; i < missTasks.size(); i++) {
+                ObjectEntity value = null;
+                try {
+                    value = missTasks.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+                if (value != null && value.get() != null) {
+                    objects.put(missKeys.get(i), value.get());
+                } else {
+                    objects.remove(missKeys.get(i));
+                }
+            }
+        }
+        return objects;
     }
 
+    /**
+     * Expired entry is removed and null is returned.
+     */
     public Object getObject(String key) {
         if (TextUtils.isEmpty(key)) {
             return null;
@@ -87,21 +539,236 @@ public final class DataCacheManager {
         if (memoryCache == null || diskCache == null) {
             return null;
         }
-        key = getDiskKey(key);
-        ObjectEntity cache = memoryCache.getCache(key);
-        if (cache != null) {
-            return cache.get();
-        } else {
-            InputStream inputStream = diskCache.getCache(key);
-            if (inputStream != null) {
-                ObjectEntity value = new ObjectEntity();
-                value.decodeFrom(inputStream);
-                memoryCache.setCache(key, value);
-                return value.get();
-            } else {
-                return null;
+        ObjectEntity value = getEntry(getDiskKey(key), false);
+        return value == null ? null : value.get();
+    }
+
+    /**
+     * Stale-while-revalidate. Return the cached object immediately even if it is expired;
+     * when it is expired or missing, refresher is called off-thread and its result is
+     * cached with the new ttl. Only one refresh runs for the same key.
+     *
+     * @param ttl       time to live of the refreshed object in millis, 0 means never expired
+     * @param refresher load the latest object, maybe blocking
+     * @return cached object, maybe stale; null if not cached
+     */
+    public Object getObject(final String key, final long ttl, final Function0<? extends Serializable> refresher) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        if (memoryCache == null || diskCache == null) {
+            return null;
+        }
+        final String diskKey = getDiskKey(key);
+        ObjectEntity value = getEntry(diskKey, true);
+        if ((value == null || value.isExpired()) && refresher != null && refreshingKeys.add(diskKey)) {
+            try {
+                backgroundExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Serializable obj = refresher.call();
+                            if (obj != null) {
+                                setObject(key, obj, ttl);
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            refreshingKeys.remove(diskKey);
+                        }
+                    }
+                });
+            } catch (Exception e) {
+                // released
+                refreshingKeys.remove(diskKey);
+            }
+        }
+        return value == null ? null : value.get();
+    }
+
+    /**
+     * Return the cached object, or call loader and cache its result. Concurrent callers
+     * of the same key share one loader call and all get its result.
+     *
+     * @param loader load the object on miss, maybe blocking, runs on the caller's thread
+     * @return null if loader returns null
+     */
+    public <T extends Serializable> T getOrLoad(String key, Function0<T> loader) {
+        return getOrLoad(key, 0, loader);
+    }
+
+    /**
+     * @param ttl time to live of the loaded object in millis, 0 means never expired
+     * @see #getOrLoad(String, Function0)
+     */
+    public <T extends Serializable> T getOrLoad(final String key, final long ttl, final Function0<T> loader) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        if (memoryCache == null || diskCache == null) {
+            return null;
+        }
+        final String diskKey = getDiskKey(key);
+        ObjectEntity value = getEntry(diskKey, false);
+        if (value != null || loader == null) {
+            return value == null ? null : (T) value.get();
+        }
+        FutureTask<Object> task = new FutureTask<>(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                // cached by the last loader just now, it lands in memory; the miss is recorded already
+                final MemoryCache memoryCache = DataCacheManager.this.memoryCache;
+                ObjectEntity value = memoryCache == null ? null : memoryCache.peek(diskKey);
+                if (value != null && !value.isExpired()) {
+                    return value.get();
+                }
+                T obj = loader.call();
+                if (obj != null) {
+                    setObject(key, obj, ttl);
+                }
+                return obj;
+            }
+        });
+        FutureTask<Object> running = loadingObjects.putIfAbsent(diskKey, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loadingObjects.remove(diskKey, task);
+            }
+        }
+        try {
+            return (T) running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Load entry from memory or disk.
+     *
+     * @param keepExpired false: remove the expired entry and return null, its payload is never decoded
+     */
+    private ObjectEntity getEntry(String diskKey, boolean keepExpired) {
+        final MemoryCache memoryCache = this.memoryCache;
+        final DiskCache diskCache = this.diskCache;
+        if (memoryCache == null || diskCache == null) {
+            return null;
+        }
+        recordAccess(diskKey);
+        ObjectEntity value = memoryCache.getCache(diskKey);
+        if (value == null) {
+            value = loadEntry(memoryCache, diskCache, diskKey, keepExpired);
+        }
+        return checkEntry(memoryCache, diskCache, diskKey, value, keepExpired);
+    }
+
+    /**
+     * Count the lookup of an entry found in memory or loaded, null if missed.
+     *
+     * @param keepExpired false: remove the expired entry and return null
+     */
+    private ObjectEntity checkEntry(MemoryCache memoryCache, DiskCache diskCache, String diskKey,
+                                    ObjectEntity value, boolean keepExpired) {
+        if (value == null) {
+            stats.recordMiss();
+            return null;
+        }
+        if (!keepExpired && value.isExpired()) {
+            memoryCache.remove(diskKey);
+            removeOffHeap(diskKey);
+            diskCache.remove(diskKey);
+            stats.recordMiss();
+            return null;
+        }
+        stats.recordHit();
+        return value;
+    }
+
+    /**
+     * Single-flight disk load: one caller reads and decodes, concurrent callers of the same key wait for it.
+     */
+    private ObjectEntity loadEntry(final MemoryCache memoryCache, final DiskCache diskCache,
+                                   final String diskKey, final boolean keepExpired) {
+        FutureTask<ObjectEntity> task = new FutureTask<>(new Callable<ObjectEntity>() {
+            @Override
+            public ObjectEntity call() throws Exception {
+                return readEntry(memoryCache, diskCache, diskKey, keepExpired);
+            }
+        });
+        FutureTask<ObjectEntity> running = loadingEntries.putIfAbsent(diskKey, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loadingEntries.remove(diskKey, task);
             }
         }
+        ObjectEntity value;
+        try {
+            value = running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (running != task && keepExpired && value != null && value.get() == null) {
+            // shared load skipped the expired payload, but this caller wants it
+            return readEntry(memoryCache, diskCache, diskKey, true);
+        }
+        return value;
+    }
+
+    private ObjectEntity readEntry(MemoryCache memoryCache, DiskCache diskCache, String diskKey, boolean keepExpired) {
+        final long begin = System.nanoTime();
+        final OffHeapCache offHeapCache = this.offHeapCache;
+        InputStream inputStream = null;
+        if (offHeapCache != null) {
+            byte[] bytes = offHeapCache.get(diskKey);
+            if (bytes != null) {
+                inputStream = new ByteArrayInputStream(bytes);
+            } else if ((inputStream = diskCache.getCache(diskKey)) != null) {
+                PushbackInputStream diskStream = new PushbackInputStream(inputStream, ObjectEntity.META_SIZE);
+                inputStream = diskStream;
+                final long expireTime = ObjectEntity.peekExpireTime(diskStream);
+                if (expireTime <= 0 || expireTime > System.currentTimeMillis()) {
+                    // fill off-heap tier on the way up, an expired entry is read from disk meta only
+                    bytes = DiskCache.readFully(diskStream);
+                    offHeapCache.put(diskKey, bytes);
+                    inputStream = bytes == null ? null : new ByteArrayInputStream(bytes);
+                }
+            }
+        } else {
+            inputStream = diskCache.getCache(diskKey);
+        }
+        if (inputStream == null) {
+            return null;
+        }
+        ObjectEntity value = new ObjectEntity(codec);
+        byte[] payload = value.readPayload(inputStream, keepExpired);
+        final long loaded = System.nanoTime();
+        if (payload != null || value.isExpired()) {
+            stats.recordLoadSuccess(loaded - begin);
+        } else {
+            stats.recordLoadFailure(loaded - begin);
+        }
+        if (payload != null) {
+            value.decodePayload(payload);
+            stats.recordDecode(System.nanoTime() - loaded);
+        }
+        if (value.get() != null) {
+            memoryCache.setCache(diskKey, value);
+        } else if (!value.isExpired()) {
+            return null;// decode error
+        }
+        return value;
     }
 
     public void remove(String key) {
@@ -111,25 +778,74 @@ public final class DataCacheManager {
         if (memoryCache == null || diskCache == null) {
             return;
         }
+        key = getDiskKey(key);
         memoryCache.remove(key);
+        removeOffHeap(key);
         diskCache.remove(key);
     }
 
+    private void recordAccess(String diskKey) {
+        final WarmUpManifest manifest = this.warmUpManifest;
+        if (manifest != null) {
+            manifest.record(diskKey);
+        }
+    }
+
+    private void removeOffHeap(String diskKey) {
+        final OffHeapCache offHeapCache = this.offHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.remove(diskKey);
+        }
+    }
+
+    /**
+     * Remove all expired entries, only the entry meta is read; no entry counts as accessed.
+     * Also called periodically in background.
+     */
+    public void clearExpiredCache() {
+        final MemoryCache memoryCache = this.memoryCache;
+        final DiskCache diskCache = this.diskCache;
+        if (memoryCache == null || diskCache == null) {
+            return;
+        }
+        for (String key : diskCache.keys()) {
+            long expireTime = ObjectEntity.readExpireTime(diskCache.peek(key));
+            if (expireTime <= 0 || expireTime > System.currentTimeMillis()) {
+                continue;
+            }
+            ObjectEntity value = memoryCache.peek(key);
+            if (value != null && !value.isExpired()) {
+                continue;// updated just now
+            }
+            memoryCache.remove(key);
+            removeOffHeap(key);
+            diskCache.remove(key);
+        }
+    }
+
     public void clearAllCache() {
         if (memoryCache == null || diskCache == null) {
             return;
         }
         memoryCache.clear();
+        final MemoryCache liveCache = this.liveCache;
+        if (liveCache != null) {
+            liveCache.clear();
+        }
+        final OffHeapCache offHeapCache = this.offHeapCache;
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+        }
         diskCache.delete();
         System.gc();
     }
 
     private String getDiskKey(String url) {
-        return md5(url);
+        return KeyDigest.of(url, keyMode);
     }
 
-    private static File getDiskCacheDir(Context context) {
-        final String fileName = "cache4data";
+    private static File getDiskCacheDir(Context context, DiskCache.Type type) {
+        final String fileName = type == DiskCache.Type.SEGMENT ? "cache4data_segment" : "cache4data";
         if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()) || !Environment.isExternalStorageRemovable()) {
             return new File(context.getExternalCacheDir(), fileName);
         } else {
@@ -137,25 +853,4 @@ public final class DataCacheManager {
         }
     }
 
-    private static String md5(String data) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(data.getBytes());
-            byte[] digest = mDigest.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte aDigest : digest) {
-                String hex = Integer.toHexString(0xFF & aDigest);
-                if (hex.length() == 1) {
-                    sb.append('0');
-                }
-                sb.append(hex);
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(data.hashCode());
-        }
-        return cacheKey;
-    }
-
 }
@@ -4,10 +4,17 @@ import android.text.TextUtils;
 
 import org.pinwheel.agility.cache.lru.DiskLruCache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Copyright (C), 2015 <br>
@@ -19,39 +26,257 @@ import java.io.OutputStream;
  */
 public class DiskCache {
 
-//    private final Object lock = new Object();
+    /**
+     * Storage backend of disk cache
+     */
+    public enum Type {
+        /**
+         * One file per entry with a journal, see {@link DiskLruCache}
+         */
+        LRU_FILE,
+        /**
+         * Append-only memory-mapped segments, see {@link SegmentDiskCache}
+         */
+        SEGMENT
+    }
+
+    /**
+     * Write-behind: max entries committed per journal flush
+     */
+    private static final int WRITE_BEHIND_BATCH_SIZE = 32;
+    /**
+     * Write-behind: max time a write waits for its batch
+     */
+    private static final long WRITE_BEHIND_WINDOW = 500;// ms
+    /**
+     * Write-behind: pending bytes bound, callers block when it is exceeded
+     */
+    private static final long WRITE_BEHIND_MAX_PENDING = 4 * 1024 * 1024;// 4M
+    /**
+     * Marks a pending remove
+     */
+    private static final byte[] TOMBSTONE = new byte[0];
 
     private DiskLruCache diskCache;
 
+    private final boolean writeBehind;
+    private final LinkedHashMap<String, byte[]> pending;
+    private long pendingBytes;
+    private Thread writer;
+    private boolean closing;
+    /**
+     * Batches are committed one by one, a later batch of the same key never lands first
+     */
+    private final Object commitLock = new Object();
+
+    private volatile BloomFilter bloomFilter;
+    /**
+     * Shared with the opened cache by {@link AsyncDiskCache}
+     */
+    CacheStats stats = new CacheStats("DiskCache");
+
+    /**
+     * @param writeBehind only used by {@link Type#LRU_FILE}, segment appends need no batching
+     */
+    public static DiskCache open(Type type, File path, int version, int cacheSize, boolean writeBehind) {
+        return open(type, path, version, cacheSize, writeBehind, true);
+    }
+
+    /**
+     * @param writeBehind   only used by {@link Type#LRU_FILE}, segment appends need no batching
+     * @param binaryJournal only used by {@link Type#LRU_FILE}, see {@link #DiskCache(File, int, int, boolean, boolean)}
+     */
+    public static DiskCache open(Type type, File path, int version, int cacheSize, boolean writeBehind, boolean binaryJournal) {
+        if (type == Type.SEGMENT) {
+            return new SegmentDiskCache(path, version, cacheSize);
+        }
+        return new DiskCache(path, version, cacheSize, writeBehind, binaryJournal);
+    }
+
+    /**
+     * For other backends, no {@link DiskLruCache} is opened.
+     */
+    protected DiskCache() {
+        this.writeBehind = false;
+        this.pending = new LinkedHashMap<>();
+    }
+
     public DiskCache(File path, int version, int cacheSize) {
+        this(path, version, cacheSize, false);
+    }
+
+    /**
+     * @param writeBehind if true, {@link #setCache(String, InputStream)} only queues the data,
+     *                    a background writer commits them in batches with one journal flush.
+     *                    The binary journal is used.
+     */
+    public DiskCache(File path, int version, int cacheSize, boolean writeBehind) {
+        this(path, version, cacheSize, writeBehind, true);
+    }
+
+    /**
+     * @param writeBehind   if true, {@link #setCache(String, InputStream)} only queues the data,
+     *                      a background writer commits them in batches with one journal flush
+     * @param binaryJournal if true, the index is kept in the binary journal of {@link DiskLruCache},
+     *                      else in its text journal; a journal in the other format is migrated on open
+     */
+    public DiskCache(File path, int version, int cacheSize, boolean writeBehind, boolean binaryJournal) {
+        this.writeBehind = writeBehind;
+        this.pending = new LinkedHashMap<>();
         try {
-            this.diskCache = DiskLruCache.open(path, version, 1, cacheSize);
+            this.diskCache = DiskLruCache.open(path, version, 1, cacheSize, binaryJournal);
+            if (writeBehind) {
+                diskCache.setJournalAutoFlush(false);
+            }
+            diskCache.setEvictionListener(new DiskLruCache.EvictionListener() {
+                @Override
+                public void onEvicted(String key, long bytes) {
+                    stats.recordEviction(bytes);
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Use {@link #contains(String)}
+     */
     @Deprecated
     public boolean isContains(String key) {
+        return contains(key);
+    }
+
+    /**
+     * Check key from the in-memory index, no directory listing or file access.
+     */
+    public boolean contains(String key) {
         if (TextUtils.isEmpty(key)) {
             return false;
         }
+        if (writeBehind) {
+            synchronized (pending) {
+                byte[] data = pending.get(key);
+                if (data != null) {
+                    return data != TOMBSTONE;
+                }
+            }
+        }
+        final BloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(key)) {
+            return false;
+        }
         if (diskCache == null) {
             return false;
         }
-        String[] fileName = diskCache.getDirectory().list();
-        for (String name : fileName) {
-            if (name.startsWith(key + ".")) {// unknown suffix
-                return true;
+        try {
+            return diskCache.contains(key);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Open the data without counting it as an access, used by maintenance scans.
+     */
+    public InputStream peek(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        if (writeBehind) {
+            synchronized (pending) {
+                byte[] data = pending.get(key);
+                if (data != null) {
+                    return data == TOMBSTONE ? null : new ByteArrayInputStream(data);
+                }
+            }
+        }
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            return diskCache.peek(key, 0);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Keys stored on disk, least recently used first. Pending writes are not included.
+     */
+    public List<String> keys() {
+        if (diskCache == null) {
+            return new ArrayList<>(0);
+        }
+        try {
+            return diskCache.keys();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new ArrayList<>(0);
+        }
+    }
+
+    /**
+     * Keep a bloom filter of stored keys, most missing keys are answered without locking the disk index.
+     * The filter never drops removed keys, it is rebuilt from the index when saturated.
+     */
+    public void setBloomFilterEnabled(boolean enable) {
+        if (enable) {
+            rebuildBloomFilter(0);
+        } else {
+            bloomFilter = null;
+        }
+    }
+
+    private synchronized void rebuildBloomFilter(int minCapacity) {
+        if (diskCache == null) {
+            return;
+        }
+        try {
+            List<String> keys = diskCache.keys();
+            BloomFilter filter = new BloomFilter(Math.max(minCapacity, keys.size() * 2));
+            for (String key : keys) {
+                filter.put(key);
             }
+            bloomFilter = filter;
+        } catch (Exception e) {
+            e.printStackTrace();
+            bloomFilter = null;
+        }
+    }
+
+    private synchronized void putBloomFilter(String key) {
+        final BloomFilter filter = bloomFilter;
+        if (filter != null && !filter.put(key)) {
+            // sized from the live keys, removed ones are dropped
+            rebuildBloomFilter(0);
         }
-        return false;
     }
 
     public InputStream getCache(String key) {
         if (TextUtils.isEmpty(key)) {
             return null;
         }
+        InputStream inputStream = openCache(key);
+        if (inputStream != null) {
+            stats.recordHit();
+        } else {
+            stats.recordMiss();
+        }
+        return inputStream;
+    }
+
+    private InputStream openCache(String key) {
+        if (writeBehind) {
+            synchronized (pending) {
+                byte[] data = pending.get(key);
+                if (data != null) {
+                    return data == TOMBSTONE ? null : new ByteArrayInputStream(data);
+                }
+            }
+        }
         if (diskCache == null) {
             return null;
         }
@@ -67,11 +292,20 @@ public class DiskCache {
     }
 
     public void setCache(String key, InputStream inputStream) {
+        stats.recordPut();
+        if (writeBehind) {
+            byte[] data = readFully(inputStream);
+            if (data != null) {
+                enqueue(key, data);
+            }
+            return;
+        }
         DiskLruCache.Editor editor = null;
         OutputStream outputStream = null;
         try {
             editor = diskCache.edit(key);
             if (editor != null) {
+                putBloomFilter(key);
                 outputStream = editor.newOutputStream(0);
                 byte[] buff = new byte[1024];
                 int size = 0;
@@ -110,10 +344,53 @@ public class DiskCache {
         }
     }
 
+    /**
+     * Write all data in one journal transaction: all edits are opened, the journal is flushed,
+     * values are written and committed, then the journal is flushed once more.
+     *
+     * @param caches key to data, written in iteration order
+     */
+    public void setCaches(Map<String, byte[]> caches) {
+        if (caches == null || caches.isEmpty() || diskCache == null) {
+            return;
+        }
+        List<Map.Entry<String, byte[]>> batch = new ArrayList<>(caches.size());
+        for (Map.Entry<String, byte[]> entry : caches.entrySet()) {
+            if (!TextUtils.isEmpty(entry.getKey()) && entry.getValue() != null) {
+                batch.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+                stats.recordPut();
+            }
+        }
+        if (writeBehind) {
+            // the writer takes its batch under commit lock too, so no older data lands after this batch
+            synchronized (commitLock) {
+                synchronized (pending) {
+                    // superseded by this batch
+                    for (Map.Entry<String, byte[]> entry : batch) {
+                        byte[] old = pending.remove(entry.getKey());
+                        if (old != null) {
+                            pendingBytes -= old.length;
+                        }
+                    }
+                    pending.notifyAll();
+                }
+                commitBatch(batch);
+            }
+        } else {
+            // batch editors leave the journal flush to the batch, a concurrent setCache() is not affected
+            commitBatch(batch);
+        }
+    }
+
     public void remove(String key) {
         if (TextUtils.isEmpty(key)) {
             return;
         }
+        if (writeBehind) {
+            // keep order with the queued writes of the same key
+            enqueue(key, TOMBSTONE);
+            return;
+        }
         if (diskCache == null) {
             return;
         }
@@ -124,11 +401,25 @@ public class DiskCache {
         }
     }
 
+    /**
+     * Hit, miss, put and eviction of this tier.
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
     public long size() {
         return diskCache == null ? 0 : diskCache.size();
     }
 
     public void delete() {
+        if (writeBehind) {
+            synchronized (pending) {
+                pending.clear();
+                pendingBytes = 0;
+                pending.notifyAll();
+            }
+        }
         if (diskCache == null) {
             return;
         }
@@ -140,6 +431,9 @@ public class DiskCache {
     }
 
     public void release() {
+        if (writeBehind) {
+            stopWriter();
+        }
         if (diskCache == null) {
             return;
         }
@@ -159,4 +453,188 @@ public class DiskCache {
         }
     }
 
+    private void enqueue(String key, byte[] data) {
+        synchronized (pending) {
+            if (closing) {
+                return;
+            }
+            // bounded, wait writer drain the queue
+            while (!pending.isEmpty() && pendingBytes + data.length > WRITE_BEHIND_MAX_PENDING && !closing) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            byte[] old = pending.remove(key);
+            if (old != null) {
+                pendingBytes -= old.length;
+            }
+            pending.put(key, data);
+            pendingBytes += data.length;
+            if (writer == null) {
+                writer = new Thread(new WriteBehindWorker(), "DiskCache-writer");
+                writer.setDaemon(true);
+                writer.start();
+            }
+            pending.notifyAll();
+        }
+    }
+
+    /**
+     * Commit all pending data and stop writer
+     */
+    private void stopWriter() {
+        Thread thread;
+        synchronized (pending) {
+            closing = true;
+            pending.notifyAll();
+            thread = writer;
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void commitBatch(List<Map.Entry<String, byte[]>> batch) {
+        synchronized (commitLock) {
+            commitBatch(diskCache, batch);
+        }
+    }
+
+    private void commitBatch(DiskLruCache cache, List<Map.Entry<String, byte[]>> batch) {
+        if (cache == null || cache.isClosed()) {
+            return;
+        }
+        List<DiskLruCache.Editor> editors = new ArrayList<>(batch.size());
+        List<byte[]> values = new ArrayList<>(batch.size());
+        try {
+            for (Map.Entry<String, byte[]> entry : batch) {
+                if (entry.getValue() == TOMBSTONE) {
+                    cache.remove(entry.getKey());
+                } else {
+                    DiskLruCache.Editor editor = cache.editInBatch(entry.getKey());
+                    if (editor != null) {
+                        putBloomFilter(entry.getKey());
+                        editors.add(editor);
+                        values.add(entry.getValue());
+                    }
+                }
+            }
+            // journal DIRTY records must reach the file before values are written
+            cache.flush();
+            for (int i = 0; i < editors.size(); i++) {
+                DiskLruCache.Editor editor = editors.get(i);
+                OutputStream outputStream = null;
+                try {
+                    outputStream = editor.newOutputStream(0);
+                    outputStream.write(values.get(i));
+                    outputStream.close();
+                    outputStream = null;
+                    editor.commit();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    editor.abortUnlessCommitted();
+                } finally {
+                    if (outputStream != null) {
+                        try {
+                            outputStream.close();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+            cache.flush();
+        } catch (Exception e) {
+            e.printStackTrace();
+            for (DiskLruCache.Editor editor : editors) {
+                editor.abortUnlessCommitted();
+            }
+        }
+    }
+
+    static byte[] readFully(InputStream inputStream) {
+        if (inputStream == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream(Math.max(32, inputStream.available()));
+            byte[] buff = new byte[4096];
+            int size;
+            while ((size = inputStream.read(buff)) != -1) {
+                byteOutputStream.write(buff, 0, size);
+            }
+            return byteOutputStream.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Commit queued data in batches, one journal flush per batch or time window.
+     */
+    private final class WriteBehindWorker implements Runnable {
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                List<Map.Entry<String, byte[]>> batch;
+                synchronized (pending) {
+                    try {
+                        while (pending.isEmpty() && !closing) {
+                            pending.wait();
+                        }
+                        final long deadline = System.currentTimeMillis() + WRITE_BEHIND_WINDOW;
+                        long remain;
+                        while (pending.size() < WRITE_BEHIND_BATCH_SIZE && !closing
+                                && (remain = deadline - System.currentTimeMillis()) > 0) {
+                            pending.wait(remain);
+                        }
+                    } catch (InterruptedException e) {
+                        closing = true;
+                    }
+                    if (pending.isEmpty()) {
+                        writer = null;
+                        return;// closing
+                    }
+                }
+                synchronized (commitLock) {
+                    synchronized (pending) {
+                        batch = new ArrayList<>(Math.min(pending.size(), WRITE_BEHIND_BATCH_SIZE));
+                        for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+                            batch.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue()));
+                            if (batch.size() >= WRITE_BEHIND_BATCH_SIZE) {
+                                break;
+                            }
+                        }
+                    }
+                    commitBatch(batch);
+                }
+                synchronized (pending) {
+                    for (Map.Entry<String, byte[]> entry : batch) {
+                        // keep it if it has been replaced during commit
+                        if (pending.get(entry.getKey()) == entry.getValue()) {
+                            pending.remove(entry.getKey());
+                            pendingBytes -= entry.getValue().length;
+                        }
+                    }
+                    pending.notifyAll();
+                }
+            }
+        }
+    }
+
 }
@@ -0,0 +1,113 @@
+package org.pinwheel.agility.cache;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Count-min sketch of 4 bit counters, 16 counters packed in a long, 4 hashes per key.
+ * All counters are halved every 10 * width additions so that old popularity fades out.
+ * Not thread safe.
+ *
+ * @author dnwang
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_WIDTH = 1 << 20;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int additions;
+
+    FrequencySketch() {
+        ensureCapacity(16);
+    }
+
+    /**
+     * Grow the table to fit the number of entries.
+     */
+    void ensureCapacity(int entries) {
+        int width = 16;
+        while (width < entries && width < MAX_WIDTH) {
+            width <<= 1;
+        }
+        if (table != null && table.length >= width) {
+            return;
+        }
+        long[] grown = new long[width];
+        if (table != null) {
+            // index of a key in the grown table is its old index plus a multiple of the old width,
+            // so each copy keeps the counters it had
+            for (int offset = 0; offset < width; offset += table.length) {
+                System.arraycopy(table, 0, grown, offset, table.length);
+            }
+        }
+        table = grown;
+        tableMask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * @return estimated frequency, 0 ~ 15
+     */
+    int frequency(String key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            final int offset = (start + i) << 2;
+            final int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(String key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        if ((table[index] & mask) != mask) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int h) {
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        h = ((h >>> 16) ^ h) * 0x45d9f3b;
+        return (h >>> 16) ^ h;
+    }
+
+}
@@ -0,0 +1,205 @@
+package org.pinwheel.agility.cache;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Estimate retained heap size of an object graph without serializing it.
+ * App classes are walked by their fields, the layout of each class is resolved once and cached;
+ * collections, maps, arrays and strings are measured by their structure, other platform
+ * objects count as a small fixed size. Shared objects are counted once, classes and enums never.
+ * A collection or map modified while it is walked is measured by its structure and the elements
+ * seen before the modification.
+ *
+ * @author dnwang
+ */
+public final class HeapSizeEstimator {
+
+    private static final int OBJECT_HEADER = 8;
+    private static final int ARRAY_HEADER = 12;
+    private static final int REFERENCE = 4;
+    private static final int PLATFORM_OBJECT = 16;
+    /**
+     * Per element overhead of linked collections and hash maps: node and table slot
+     */
+    private static final int NODE = 32;
+    /**
+     * Objects counted at most, larger graphs are underestimated
+     */
+    private static final int MAX_VISITED = 16 * 1024;
+
+    private static final ConcurrentHashMap<Class<?>, Layout> LAYOUTS = new ConcurrentHashMap<>();
+
+    private HeapSizeEstimator() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @return estimated bytes, 0 for null
+     */
+    public static long sizeOf(Object root) {
+        if (root == null) {
+            return 0;
+        }
+        IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<>();
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        long size = 0;
+        while (!pending.isEmpty() && visited.size() < MAX_VISITED) {
+            Object obj = pending.pop();
+            if (visited.put(obj, Boolean.TRUE) == null) {
+                size += shallowSizeOf(obj, pending);
+            }
+        }
+        return size;
+    }
+
+    private static long shallowSizeOf(Object obj, ArrayDeque<Object> pending) {
+        final Class<?> type = obj.getClass();
+        if (type.isArray()) {
+            final Class<?> component = type.getComponentType();
+            if (component.isPrimitive()) {
+                return align(ARRAY_HEADER + (long) Array.getLength(obj) * primitiveSize(component));
+            }
+            Object[] array = (Object[]) obj;
+            for (Object element : array) {
+                if (element != null) {
+                    pending.push(element);
+                }
+            }
+            return align(ARRAY_HEADER + (long) array.length * REFERENCE);
+        }
+        if (obj instanceof String) {
+            return align(OBJECT_HEADER + 8) + align(ARRAY_HEADER + 2L * ((String) obj).length());
+        }
+        if (obj instanceof Class || obj instanceof Enum) {
+            return 0;
+        }
+        if (obj instanceof Collection) {
+            Collection<?> collection = (Collection<?>) obj;
+            try {
+                for (Object element : collection) {
+                    if (element != null) {
+                        pending.push(element);
+                    }
+                }
+            } catch (ConcurrentModificationException e) {
+                // modified by its owner meanwhile, only the elements seen so far are walked
+            }
+            final int perElement = obj instanceof RandomAccess ? REFERENCE : NODE;
+            return align(OBJECT_HEADER + 16) + align(ARRAY_HEADER + (long) collection.size() * perElement);
+        }
+        if (obj instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) obj;
+            try {
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (entry.getKey() != null) {
+                        pending.push(entry.getKey());
+                    }
+                    if (entry.getValue() != null) {
+                        pending.push(entry.getValue());
+                    }
+                }
+            } catch (ConcurrentModificationException e) {
+                // modified by its owner meanwhile, only the entries seen so far are walked
+            }
+            return align(OBJECT_HEADER + 24) + align(ARRAY_HEADER + (long) map.size() * NODE);
+        }
+        if (isPlatform(type)) {
+            return PLATFORM_OBJECT;
+        }
+        Layout layout = layoutOf(type);
+        for (Field field : layout.references) {
+            try {
+                Object value = field.get(obj);
+                if (value != null) {
+                    pending.push(value);
+                }
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+        return layout.shallowSize;
+    }
+
+    private static Layout layoutOf(Class<?> type) {
+        Layout layout = LAYOUTS.get(type);
+        if (layout == null) {
+            layout = new Layout(type);
+            Layout old = LAYOUTS.putIfAbsent(type, layout);
+            if (old != null) {
+                layout = old;
+            }
+        }
+        return layout;
+    }
+
+    private static boolean isPlatform(Class<?> type) {
+        final String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.")
+                || name.startsWith("android.") || name.startsWith("dalvik.");
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;// byte, boolean
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Instance fields of an app class and its app super classes.
+     */
+    private static final class Layout {
+        final long shallowSize;
+        final Field[] references;
+
+        Layout(Class<?> type) {
+            long size = OBJECT_HEADER;
+            List<Field> references = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                if (isPlatform(c)) {
+                    size += PLATFORM_OBJECT - OBJECT_HEADER;// fields of platform super class
+                    break;
+                }
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    if (field.getType().isPrimitive()) {
+                        size += primitiveSize(field.getType());
+                    } else {
+                        size += REFERENCE;
+                        field.setAccessible(true);
+                        references.add(field);
+                    }
+                }
+            }
+            this.shallowSize = align(size);
+            this.references = references.toArray(new Field[references.size()]);
+        }
+    }
+
+}
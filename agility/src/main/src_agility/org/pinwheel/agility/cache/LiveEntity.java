@@ -0,0 +1,34 @@
+package org.pinwheel.agility.cache;
+
+import java.io.InputStream;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Memory-only entry holding a live object, never encoded.
+ * Its size is estimated once when it is created.
+ *
+ * @author dnwang
+ */
+final class LiveEntity extends ObjectEntity<Object> {
+
+    private final int size;
+
+    LiveEntity(Object obj) {
+        setObj(obj);
+        this.size = (int) Math.min(Integer.MAX_VALUE, HeapSizeEstimator.sizeOf(obj));
+    }
+
+    @Override
+    protected int sizeOf() {
+        return size;
+    }
+
+    @Override
+    protected InputStream getInputStream() {
+        return null;
+    }
+
+}
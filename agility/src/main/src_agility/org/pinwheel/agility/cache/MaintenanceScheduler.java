@@ -0,0 +1,228 @@
+package org.pinwheel.agility.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Background maintenance of all caches (trim, journal rebuild, compaction) on a few
+ * low priority threads. Requests of a job are coalesced: it is queued at most once and
+ * never runs concurrently with itself. A job waits until no foreground work is noted for
+ * a while, see {@link #noteActivity()}, but not longer than {@link #MAX_DEFER}. A deferred job
+ * is queued again with a delay, it does not block a thread meanwhile.
+ *
+ * @author dnwang
+ */
+public final class MaintenanceScheduler {
+
+    private static final int MAX_THREADS = 2;
+    /**
+     * Quiet time before a job runs, ms
+     */
+    private static final long IDLE_DELAY = 300;
+    /**
+     * A job is not deferred longer than this, ms
+     */
+    private static final long MAX_DEFER = 5000;
+
+    private static final int IDLE = 0;
+    private static final int QUEUED = 1;
+    private static final int RUNNING = 2;
+    private static final int RERUN = 3;
+    private static final int CANCELLED = 4;
+    /**
+     * Ran and left the slot map, a new request takes a new slot
+     */
+    private static final int DONE = 5;
+
+    private static final MaintenanceScheduler DEFAULT = new MaintenanceScheduler();
+
+    public static MaintenanceScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentHashMap<Runnable, Slot> slots;
+    private volatile long lastActivity;
+
+    private MaintenanceScheduler() {
+        this.executor = new ScheduledThreadPoolExecutor(MAX_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "CacheMaintenance-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.setKeepAliveTime(30L, TimeUnit.SECONDS);
+        this.executor.allowCoreThreadTimeOut(true);
+        this.slots = new ConcurrentHashMap<>();
+        this.lastActivity = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(IDLE_DELAY);
+    }
+
+    /**
+     * Foreground reads and writes call this, pending jobs wait for a quiet moment.
+     */
+    public void noteActivity() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Run the job in background. Requests before it starts are merged into one run,
+     * a request while it is running makes it run once more afterwards.
+     */
+    public void schedule(Runnable job) {
+        while (true) {
+            Slot slot = slots.get(job);
+            if (slot == null) {
+                slot = new Slot(job, 0);
+                Slot old = slots.putIfAbsent(job, slot);
+                if (old != null) {
+                    slot = old;
+                }
+            }
+            if (slot.request()) {
+                return;
+            }
+            // done just now, take a new slot
+            slots.remove(job, slot);
+        }
+    }
+
+    /**
+     * Run the job in background after {@code delay}, then again {@code period} after each run
+     * until it is cancelled. Each run also waits for a quiet moment. Ignored if the job is
+     * scheduled already.
+     */
+    public void scheduleWithFixedDelay(Runnable job, long delay, long period, TimeUnit unit) {
+        Slot slot = new Slot(job, Math.max(1, unit.toNanos(period)));
+        if (slots.putIfAbsent(job, slot) == null && slot.state.compareAndSet(IDLE, QUEUED)) {
+            slot.enqueue(Math.max(0, unit.toNanos(delay)));
+        }
+    }
+
+    /**
+     * Drop the pending run of the job, a running one completes. Called by the owner when closed.
+     */
+    public void cancel(Runnable job) {
+        Slot slot = slots.remove(job);
+        if (slot != null) {
+            slot.cancel();
+        }
+    }
+
+    /**
+     * @return nanos to wait for a quiet moment, 0 to run now
+     */
+    private long idleWait(long dueAt) {
+        final long now = System.nanoTime();
+        final long idle = now - lastActivity;
+        final long deferred = now - dueAt;
+        final long idleDelay = TimeUnit.MILLISECONDS.toNanos(IDLE_DELAY);
+        final long maxDefer = TimeUnit.MILLISECONDS.toNanos(MAX_DEFER);
+        if (idle >= idleDelay || deferred >= maxDefer) {
+            return 0;
+        }
+        return Math.min(idleDelay - idle, maxDefer - deferred);
+    }
+
+    private final class Slot implements Runnable {
+        /**
+         * Cleared when cancelled, a queued run may hold the slot until it is due
+         */
+        volatile Runnable job;
+        /**
+         * Delay between runs in nanos, 0 if it runs once per request
+         */
+        final long period;
+        final AtomicInteger state = new AtomicInteger(IDLE);
+        volatile long dueAt;
+        private volatile Future<?> future;
+
+        Slot(Runnable job, long period) {
+            this.job = job;
+            this.period = period;
+        }
+
+        /**
+         * @return false if the slot is done, request a new one
+         */
+        boolean request() {
+            while (true) {
+                final int current = state.get();
+                if (current == IDLE) {
+                    if (state.compareAndSet(IDLE, QUEUED)) {
+                        enqueue(0);
+                        return true;
+                    }
+                } else if (current == RUNNING) {
+                    if (state.compareAndSet(RUNNING, RERUN)) {
+                        return true;
+                    }
+                } else {
+                    return current != DONE;// queued already, or cancelled
+                }
+            }
+        }
+
+        void cancel() {
+            state.set(CANCELLED);
+            job = null;
+            final Future<?> future = this.future;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        void enqueue(long delay) {
+            dueAt = System.nanoTime() + delay;
+            future = executor.schedule(this, delay, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void run() {
+            if (state.get() != QUEUED) {
+                return;
+            }
+            final long wait = idleWait(dueAt);
+            if (wait > 0) {
+                // foreground is busy, check again later instead of sleeping on this thread
+                future = executor.schedule(this, wait, TimeUnit.NANOSECONDS);
+                return;
+            }
+            final Runnable job = this.job;
+            if (job == null || !state.compareAndSet(QUEUED, RUNNING)) {
+                return;
+            }
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            if (state.compareAndSet(RERUN, QUEUED)) {
+                enqueue(0);
+            } else if (period > 0 && state.compareAndSet(RUNNING, QUEUED)) {
+                enqueue(period);
+            } else if (state.compareAndSet(RUNNING, DONE)) {
+                // not kept for jobs that are never cancelled
+                slots.remove(job, this);
+            }
+        }
+    }
+
+}
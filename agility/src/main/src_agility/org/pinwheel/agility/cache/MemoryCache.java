@@ -1,44 +1,186 @@
 package org.pinwheel.agility.cache;
 
-import android.support.v4.util.LruCache;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.text.TextUtils;
 
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * Copyright (C), 2015 <br>
  * <br>
  * All rights reserved <br>
  * <br>
+ * Keys are hash-routed to independently locked segments; the byte budget is global,
+ * when it is exceeded the segments holding the most bytes are trimmed first.
+ * Each segment is a plain LRU or a W-TinyLFU, see {@link Policy}.
+ * Register it by {@link android.content.Context#registerComponentCallbacks} to trim on memory pressure.
  *
  * @author dnwang
  */
-public class MemoryCache {
+public class MemoryCache implements ComponentCallbacks2 {
+
+    public enum Policy {
+        /**
+         * Least recently used
+         */
+        LRU,
+        /**
+         * Frequency-aware admission in front of a segmented LRU, resists scans of one-off keys
+         */
+        TINY_LFU
+    }
 
-//    private final Object lock = new Object();
+    /**
+     * Told of entries evicted to fit the budget, including an entry rejected or too large when put;
+     * not of removed or replaced ones, nor of those dropped by {@link #clear()} or trimmed by
+     * {@link #trimToSize(long)} on memory pressure. Called on the thread that caused the eviction,
+     * outside the segment lock.
+     */
+    public interface OnEvictedListener {
+        void onEvicted(String key, ObjectEntity value);
+    }
 
-    private LruCache<String, ObjectEntity> memoryCache;
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 8;
+    private static final int MAX_CONCURRENCY_LEVEL = 64;
+
+    private final int maxSize;
+    private final int segmentMask;
+
+    private final Policy policy;
+    private Segment[] segments;
+    // bytes of all segments, kept by put and the removal callbacks, so a put under budget locks nothing global
+    private final AtomicLong totalSize = new AtomicLong();
+    // one global trim at a time, concurrent ones would over-evict; others leave it to the running one
+    private final ReentrantLock trimLock = new ReentrantLock();
+    private final CacheStats stats = new CacheStats("MemoryCache");
+    private volatile OnEvictedListener onEvictedListener;
 
     public MemoryCache(int cacheSize) {
-        this.memoryCache = new LruCache<String, ObjectEntity>(Math.max(0, cacheSize)) {
-            @Override
-            protected int sizeOf(String key, ObjectEntity value) {
-                return value.sizeOf();
+        this(cacheSize, DEFAULT_CONCURRENCY_LEVEL, Policy.LRU);
+    }
+
+    public MemoryCache(int cacheSize, Policy policy) {
+        this(cacheSize, DEFAULT_CONCURRENCY_LEVEL, policy);
+    }
+
+    public MemoryCache(int cacheSize, int concurrencyLevel) {
+        this(cacheSize, concurrencyLevel, Policy.LRU);
+    }
+
+    /**
+     * @param cacheSize        global max bytes
+     * @param concurrencyLevel number of segments, round up to power of 2
+     */
+    public MemoryCache(int cacheSize, int concurrencyLevel, Policy policy) {
+        this.maxSize = Math.max(1, cacheSize);
+        this.policy = (null == policy) ? Policy.LRU : policy;
+        int count = 1;
+        while (count < Math.min(Math.max(1, concurrencyLevel), MAX_CONCURRENCY_LEVEL)) {
+            count <<= 1;
+        }
+        this.segmentMask = count - 1;
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            // single segment can use whole budget, global trim keeps the total in bound
+            if (this.policy == Policy.TINY_LFU) {
+                segments[i] = new TinyLfuCache(maxSize) {
+                    @Override
+                    protected void entryRemoved(boolean evicted, String key, ObjectEntity oldValue, ObjectEntity newValue) {
+                        onEntryRemoved(evicted, key, oldValue);
+                    }
+                };
+            } else {
+                segments[i] = new LruSegment(maxSize);
             }
-        };
+        }
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public void setOnEvictedListener(OnEvictedListener listener) {
+        this.onEvictedListener = listener;
+    }
+
+    private void onEntryRemoved(boolean evicted, String key, ObjectEntity oldValue) {
+        totalSize.addAndGet(-oldValue.sizeOf());
+        if (evicted) {
+            stats.recordEviction(oldValue.sizeOf());
+            final OnEvictedListener listener = this.onEvictedListener;
+            if (listener != null) {
+                listener.onEvicted(key, oldValue);
+            }
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        final Segment[] segments = this.segments;
+        if (segments == null) {
+            return null;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & segmentMask];
     }
 
     public ObjectEntity getCache(String key) {
         if (TextUtils.isEmpty(key)) {
             return null;
         }
-        return memoryCache == null ? null : memoryCache.get(key);
+        Segment segment = segmentFor(key);
+        ObjectEntity value = segment == null ? null : segment.get(key);
+        if (value != null) {
+            stats.recordHit();
+        } else {
+            stats.recordMiss();
+        }
+        return value;
+    }
+
+    /**
+     * Not counted in the stats, nor as an access for the eviction order.
+     */
+    public boolean contains(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return false;
+        }
+        Segment segment = segmentFor(key);
+        return segment != null && segment.contains(key);
+    }
+
+    /**
+     * Like {@link #getCache(String)}, but not counted in the stats, nor as an access for the
+     * eviction order. For maintenance that must not keep entries alive.
+     */
+    public ObjectEntity peek(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        Segment segment = segmentFor(key);
+        return segment == null ? null : segment.peek(key);
     }
 
     public void setCache(String key, ObjectEntity value) {
         if (TextUtils.isEmpty(key)) {
             return;
         }
-        if (memoryCache != null) {
-            memoryCache.put(key, value);
+        Segment segment = segmentFor(key);
+        if (segment != null) {
+            segment.put(key, value);
+            totalSize.addAndGet(value.sizeOf());
+            stats.recordPut();
+            trimToMaxSize();
         }
     }
 
@@ -46,24 +188,279 @@ public class MemoryCache {
         if (TextUtils.isEmpty(key)) {
             return;
         }
-        if (memoryCache != null) {
-            memoryCache.remove(key);
+        Segment segment = segmentFor(key);
+        if (segment != null) {
+            segment.remove(key);
         }
     }
 
     public long size() {
-        return memoryCache == null ? 0 : memoryCache.size();
+        return segments == null ? 0 : Math.max(0, totalSize.get());
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Evict from the largest segments until the total size fits the budget.
+     */
+    private void trimToMaxSize() {
+        final Segment[] segments = this.segments;
+        if (segments == null) {
+            return;
+        }
+        // re-checked after unlock, a put may have found the lock taken
+        while (totalSize.get() > maxSize && trimLock.tryLock()) {
+            try {
+                while (true) {
+                    final long overflow = totalSize.get() - maxSize;
+                    if (overflow <= 0) {
+                        return;
+                    }
+                    Segment largest = null;
+                    int largestSize = 0;
+                    for (Segment segment : segments) {
+                        int size = segment.size();
+                        if (size > largestSize) {
+                            largestSize = size;
+                            largest = segment;
+                        }
+                    }
+                    if (largest == null) {
+                        return;
+                    }
+                    largest.trimToSize((int) Math.max(0, largestSize - overflow));
+                    if (largest.size() >= largestSize) {
+                        // grown by a put meanwhile, its own trim follows
+                        break;
+                    }
+                }
+            } finally {
+                trimLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Trim the total size down to {@code size}, the largest entries are dropped first.
+     */
+    public void trimToSize(long size) {
+        final Segment[] segments = this.segments;
+        if (segments == null) {
+            return;
+        }
+        long total = size();
+        if (total <= size) {
+            return;
+        }
+        if (size <= 0) {
+            clear();
+            return;
+        }
+        List<Map.Entry<String, ObjectEntity>> entries = new ArrayList<>();
+        for (Segment segment : segments) {
+            entries.addAll(segment.snapshot().entrySet());
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, ObjectEntity>>() {
+            @Override
+            public int compare(Map.Entry<String, ObjectEntity> lhs, Map.Entry<String, ObjectEntity> rhs) {
+                final int lhsSize = lhs.getValue().sizeOf();
+                final int rhsSize = rhs.getValue().sizeOf();
+                return lhsSize == rhsSize ? 0 : (lhsSize > rhsSize ? -1 : 1);
+            }
+        });
+        for (Map.Entry<String, ObjectEntity> entry : entries) {
+            if (total <= size) {
+                break;
+            }
+            ObjectEntity removed = segmentFor(entry.getKey()).remove(entry.getKey());
+            if (removed != null) {
+                total -= removed.sizeOf();
+                stats.recordEviction(removed.sizeOf());
+            }
+        }
+    }
+
+    /**
+     * @return part of the cache to keep at the trim level, 0 ~ 1
+     */
+    public static float retainRatioOf(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            return 0;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        final float ratio = retainRatioOf(level);
+        if (ratio < 1) {
+            trimToSize((long) (size() * ratio));
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
     }
 
+    /**
+     * Drop all entries, the listener is not told: a caller may still draw them.
+     */
     public void clear() {
-        if (memoryCache != null) {
-            memoryCache.evictAll();
+        final Segment[] segments = this.segments;
+        if (segments != null) {
+            for (Segment segment : segments) {
+                for (String key : segment.snapshot().keySet()) {
+                    ObjectEntity removed = segment.remove(key);
+                    if (removed != null) {
+                        stats.recordEviction(removed.sizeOf());
+                    }
+                }
+            }
         }
     }
 
     public void release() {
         clear();
-        memoryCache = null;
+        segments = null;
+    }
+
+    interface Segment {
+        ObjectEntity get(String key);
+
+        /**
+         * Not an access
+         */
+        ObjectEntity peek(String key);
+
+        boolean contains(String key);
+
+        ObjectEntity put(String key, ObjectEntity value);
+
+        ObjectEntity remove(String key);
+
+        Map<String, ObjectEntity> snapshot();
+
+        int size();
+
+        void trimToSize(int maxSize);
+    }
+
+    /**
+     * Least recently used, eldest first. Unlike LruCache it can be looked up without an access.
+     */
+    private final class LruSegment implements Segment {
+
+        private final int maxSize;
+        // insertion ordered, move to tail on access
+        private final LinkedHashMap<String, ObjectEntity> map;
+        private int size;
+
+        LruSegment(int maxSize) {
+            this.maxSize = maxSize;
+            this.map = new LinkedHashMap<>();
+        }
+
+        @Override
+        public synchronized ObjectEntity get(String key) {
+            ObjectEntity value = map.remove(key);
+            if (value != null) {
+                map.put(key, value);
+            }
+            return value;
+        }
+
+        @Override
+        public synchronized ObjectEntity peek(String key) {
+            return map.get(key);
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public ObjectEntity put(String key, ObjectEntity value) {
+            if (key == null || value == null) {
+                throw new NullPointerException("key == null || value == null");
+            }
+            ObjectEntity previous;
+            synchronized (this) {
+                previous = map.remove(key);
+                if (previous != null) {
+                    size -= previous.sizeOf();
+                }
+                map.put(key, value);
+                size += value.sizeOf();
+            }
+            if (previous != null) {
+                onEntryRemoved(false, key, previous);
+            }
+            trimToSize(maxSize);
+            return previous;
+        }
+
+        @Override
+        public ObjectEntity remove(String key) {
+            ObjectEntity previous;
+            synchronized (this) {
+                previous = map.remove(key);
+                if (previous != null) {
+                    size -= previous.sizeOf();
+                }
+            }
+            if (previous != null) {
+                onEntryRemoved(false, key, previous);
+            }
+            return previous;
+        }
+
+        @Override
+        public synchronized Map<String, ObjectEntity> snapshot() {
+            return new LinkedHashMap<>(map);
+        }
+
+        @Override
+        public synchronized int size() {
+            return size;
+        }
+
+        @Override
+        public void trimToSize(int maxSize) {
+            while (true) {
+                Map.Entry<String, ObjectEntity> eldest;
+                synchronized (this) {
+                    if (size <= maxSize || map.isEmpty()) {
+                        break;
+                    }
+                    Iterator<Map.Entry<String, ObjectEntity>> iterator = map.entrySet().iterator();
+                    // entry of LinkedHashMap is reused after removal, keep a copy
+                    eldest = new AbstractMap.SimpleImmutableEntry<>(iterator.next());
+                    iterator.remove();
+                    size -= eldest.getValue().sizeOf();
+                }
+                onEntryRemoved(true, eldest.getKey(), eldest.getValue());
+            }
+        }
     }
 
 }
@@ -0,0 +1,33 @@
+package org.pinwheel.agility.cache;
+
+import java.io.IOException;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ *
+ * @author dnwang
+ */
+public interface ObjectCodec {
+
+    /**
+     * Encode object to bytes, the result is used for size accounting and disk write.
+     *
+     * @param obj object, maybe null
+     * @return encoded bytes, never null
+     */
+    byte[] encode(Object obj) throws IOException;
+
+    /**
+     * Decode object from the bytes created by {@link #encode(Object)}
+     *
+     * @param bytes  data
+     * @param offset begin index
+     * @param length data length
+     * @return object
+     */
+    Object decode(byte[] bytes, int offset, int length) throws IOException;
+
+}
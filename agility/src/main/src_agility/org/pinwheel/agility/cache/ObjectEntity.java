@@ -4,8 +4,8 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.PushbackInputStream;
+import java.io.SequenceInputStream;
 import java.io.Serializable;
 
 /**
@@ -18,42 +18,81 @@ import java.io.Serializable;
  */
 public class ObjectEntity<T> implements Serializable {
 
+    private static final ObjectCodec DEFAULT_CODEC = new BinaryObjectCodec();
+
+    /**
+     * Entry meta written before the encoded data: magic(2), version(1), expire time(8)
+     */
+    static final int META_SIZE = 11;
+    private static final byte META_MAGIC_0 = (byte) 0xCA;
+    private static final byte META_MAGIC_1 = (byte) 0x7E;
+    private static final byte META_VERSION = 1;
+
+    private transient ObjectCodec codec;
+    /**
+     * Encoded data, kept until it has been handed to disk cache
+     */
+    private transient byte[] bytes;
+
     private T obj;
     private int size;
+    /**
+     * Absolute time in millis, 0 means never expired
+     */
+    private long expireTime;
 
     public ObjectEntity() {
+        this(null);
+    }
+
+    public ObjectEntity(ObjectCodec codec) {
+        this.codec = codec;
         this.obj = null;
     }
 
+    protected final ObjectCodec getCodec() {
+        if (codec == null) {
+            codec = DEFAULT_CODEC;
+        }
+        return codec;
+    }
+
     protected int sizeOf() {
         return size;
     }
 
+    public final long getExpireTime() {
+        return expireTime;
+    }
+
+    /**
+     * @param expireTime absolute time in millis, 0 means never expired
+     */
+    public final void setExpireTime(long expireTime) {
+        this.expireTime = Math.max(0, expireTime);
+    }
+
+    public final boolean isExpired() {
+        return expireTime > 0 && System.currentTimeMillis() >= expireTime;
+    }
+
     protected InputStream getInputStream() {
         if (obj == null) {
             return null;
         }
-        ByteArrayInputStream inputStream = null;
-        ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
-        try {
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteOutputStream);
-            objectOutputStream.writeObject(obj);
-            byte[] bytes = byteOutputStream.toByteArray();
-            this.size = bytes.length;
-            objectOutputStream.flush();
-            objectOutputStream.close();
-            inputStream = new ByteArrayInputStream(bytes);
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
+        byte[] data = bytes;
+        if (data == null) {
             try {
-                byteOutputStream.flush();
-                byteOutputStream.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+                data = getCodec().encode(obj);
+                this.size = data.length;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
             }
         }
-        return inputStream;
+        // encoded bytes only used once by disk write, no need keep it in memory
+        bytes = null;
+        return new SequenceInputStream(new ByteArrayInputStream(encodeMeta(expireTime)), new ByteArrayInputStream(data));
     }
 
     public T get() {
@@ -65,34 +104,53 @@ public class ObjectEntity<T> implements Serializable {
     }
 
     public void decodeFrom(InputStream inputStream) {
+        decodeFrom(inputStream, true);
+    }
+
+    /**
+     * @param decodeExpired false: stop after the meta if the entry is expired, the payload is not read
+     */
+    void decodeFrom(InputStream inputStream, boolean decodeExpired) {
+        byte[] payload = readPayload(inputStream, decodeExpired);
+        if (payload != null) {
+            decodePayload(payload);
+        }
+    }
+
+    /**
+     * Read the meta and the encoded payload, the stream is closed.
+     *
+     * @param decodeExpired false: stop after the meta if the entry is expired, the payload is not read
+     * @return payload, null if it is not read or on error
+     */
+    byte[] readPayload(InputStream inputStream, boolean decodeExpired) {
         if (inputStream == null) {
-            return;
+            return null;
         }
-        ObjectInputStream objectInputStream = null;
         try {
+            byte[] meta = new byte[META_SIZE];
+            int metaLength = readFully(inputStream, meta);
+            final boolean hasMeta = metaLength == META_SIZE && isMeta(meta, 0);
+            if (hasMeta) {
+                setExpireTime(decodeExpireTime(meta, 0));
+                if (!decodeExpired && isExpired()) {
+                    return null;
+                }
+            }
             ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+            if (!hasMeta) {
+                byteOutputStream.write(meta, 0, metaLength);
+            }
             byte[] buff = new byte[1024];
-            int size = 0;
+            int size;
             while ((size = inputStream.read(buff)) != -1) {
                 byteOutputStream.write(buff, 0, size);
             }
-            buff = byteOutputStream.toByteArray();
-            this.size = buff.length;
-            objectInputStream = new ObjectInputStream(new ByteArrayInputStream(buff));
-            setObj((T) objectInputStream.readObject());
-
-            byteOutputStream.flush();
-            byteOutputStream.close();
-        } catch (ClassNotFoundException | IOException e) {
+            return byteOutputStream.toByteArray();
+        } catch (IOException e) {
             e.printStackTrace();
+            return null;
         } finally {
-            if (objectInputStream != null) {
-                try {
-                    objectInputStream.close();
-                } catch (IOException e1) {
-                    e1.printStackTrace();
-                }
-            }
             try {
                 inputStream.close();
             } catch (IOException e1) {
@@ -102,44 +160,124 @@ public class ObjectEntity<T> implements Serializable {
     }
 
     public void decodeFrom(byte[] bytes) {
+        if (bytes == null || bytes.length == 0) {
+            return;
+        }
+        if (bytes.length >= META_SIZE && isMeta(bytes, 0)) {
+            setExpireTime(decodeExpireTime(bytes, 0));
+            decodeData(bytes, META_SIZE, bytes.length - META_SIZE);
+        } else {
+            decodeData(bytes, 0, bytes.length);
+        }
+    }
 
+    void decodePayload(byte[] payload) {
+        decodeData(payload, 0, payload.length);
     }
 
+    private void decodeData(byte[] bytes, int offset, int length) {
+        try {
+            setObj((T) getCodec().decode(bytes, offset, length));
+            this.size = length;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keep the live object, encode it once for size and the following disk write.
+     */
     public void decodeFrom(T obj) {
         if (obj == null) {
             return;
         }
-        ByteArrayOutputStream byteOutStream = null;
-        ObjectInputStream objInStream = null;
         try {
-            byteOutStream = new ByteArrayOutputStream();
-            ObjectOutputStream objOutStream = new ObjectOutputStream(byteOutStream);
-            objOutStream.writeObject(obj);
-            byte[] bytes = byteOutStream.toByteArray();
-            this.size = bytes.length;
-            objInStream = new ObjectInputStream(new ByteArrayInputStream(bytes));
-            setObj((T) objInStream.readObject());
-
-            objOutStream.flush();
-            objOutStream.close();
-        } catch (IOException | ClassNotFoundException e) {
+            byte[] data = getCodec().encode(obj);
+            this.bytes = data;
+            this.size = data.length;
+            setObj(obj);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read the expire time only, the stream is closed and the payload is never read.
+     *
+     * @return expire time, 0 if never expired or no meta
+     */
+    static long readExpireTime(InputStream inputStream) {
+        if (inputStream == null) {
+            return 0;
+        }
+        try {
+            byte[] meta = new byte[META_SIZE];
+            if (readFully(inputStream, meta) == META_SIZE && isMeta(meta, 0)) {
+                return decodeExpireTime(meta, 0);
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            if (byteOutStream != null) {
-                try {
-                    byteOutStream.flush();
-                    byteOutStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            if (objInStream != null) {
-                try {
-                    objInStream.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        }
+        return 0;
+    }
+
+    /**
+     * Read the expire time and push the meta back, the stream still reads the whole entry.
+     *
+     * @return expire time, 0 if never expired or no meta
+     */
+    static long peekExpireTime(PushbackInputStream inputStream) {
+        try {
+            byte[] meta = new byte[META_SIZE];
+            final int length = readFully(inputStream, meta);
+            inputStream.unread(meta, 0, length);
+            if (length == META_SIZE && isMeta(meta, 0)) {
+                return decodeExpireTime(meta, 0);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    private static byte[] encodeMeta(long expireTime) {
+        byte[] meta = new byte[META_SIZE];
+        meta[0] = META_MAGIC_0;
+        meta[1] = META_MAGIC_1;
+        meta[2] = META_VERSION;
+        for (int i = 0; i < 8; i++) {
+            meta[3 + i] = (byte) (expireTime >>> (56 - i * 8));
+        }
+        return meta;
+    }
+
+    private static boolean isMeta(byte[] bytes, int offset) {
+        return bytes[offset] == META_MAGIC_0 && bytes[offset + 1] == META_MAGIC_1 && bytes[offset + 2] == META_VERSION;
+    }
+
+    private static long decodeExpireTime(byte[] bytes, int offset) {
+        long expireTime = 0;
+        for (int i = 0; i < 8; i++) {
+            expireTime = (expireTime << 8) | (bytes[offset + 3 + i] & 0xFF);
+        }
+        return expireTime;
+    }
+
+    private static int readFully(InputStream inputStream, byte[] buff) throws IOException {
+        int count = 0;
+        while (count < buff.length) {
+            int size = inputStream.read(buff, count, buff.length - count);
+            if (size == -1) {
+                break;
             }
+            count += size;
         }
+        return count;
     }
 }
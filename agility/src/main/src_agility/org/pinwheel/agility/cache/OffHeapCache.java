@@ -0,0 +1,394 @@
+package org.pinwheel.agility.cache;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.text.TextUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Encoded entries kept out of java heap, in direct ByteBuffer slabs. Each slab is carved into
+ * equal chunks of one size class, an entry takes one chunk of the smallest class it fits.
+ * Each size class has its own LRU; when the budget is used up, a class evicts its own eldest
+ * entries, or takes a slab from the class holding the most slabs if it holds fewer than average.
+ *
+ * @author dnwang
+ */
+public class OffHeapCache implements ComponentCallbacks2 {
+
+    private static final int MAX_SLAB_SIZE = 1024 * 1024;// 1M
+    private static final int MIN_CHUNK_SIZE = 128;
+    private static final float CHUNK_GROWTH = 1.25f;
+    private static final int CHUNK_BITS = 14;
+
+    private final long maxSize;
+    private final int slabSize;
+    private final int[] chunkSizes;
+
+    private final List<Slab> slabs;
+    private final SizeClass[] classes;
+    private final HashMap<String, Entry> index;
+    private long size;
+    private int slabCount;
+    private final CacheStats stats = new CacheStats("OffHeapCache");
+
+    /**
+     * @param cacheSize max bytes of all slabs
+     */
+    public OffHeapCache(long cacheSize) {
+        this.maxSize = Math.max(MIN_CHUNK_SIZE, cacheSize);
+        this.slabSize = (int) Math.min(MAX_SLAB_SIZE, maxSize);
+        List<Integer> sizes = new ArrayList<>();
+        int chunkSize = Math.min(MIN_CHUNK_SIZE, slabSize);
+        while (chunkSize < slabSize) {
+            sizes.add(chunkSize);
+            chunkSize = Math.max(chunkSize + 8, (int) (chunkSize * CHUNK_GROWTH) & ~7);
+        }
+        sizes.add(slabSize);
+        this.chunkSizes = new int[sizes.size()];
+        this.classes = new SizeClass[sizes.size()];
+        for (int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+            classes[i] = new SizeClass();
+        }
+        this.slabs = new ArrayList<>();
+        this.index = new HashMap<>();
+    }
+
+    public synchronized byte[] get(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        Entry entry = index.get(key);
+        if (entry == null) {
+            stats.recordMiss();
+            return null;
+        }
+        // touch
+        classes[entry.sizeClass].lru.get(key);
+        byte[] data = new byte[entry.length];
+        ByteBuffer buffer = slabs.get(entry.slab).buffer.duplicate();
+        buffer.position(entry.chunk * chunkSizes[entry.sizeClass]);
+        buffer.get(data);
+        stats.recordHit();
+        return data;
+    }
+
+    public synchronized boolean contains(String key) {
+        return !TextUtils.isEmpty(key) && index.containsKey(key);
+    }
+
+    /**
+     * Data larger than a slab is not cached.
+     */
+    public synchronized void put(String key, byte[] data) {
+        if (TextUtils.isEmpty(key) || data == null) {
+            return;
+        }
+        removeEntry(key);
+        if (data.length > slabSize) {
+            return;
+        }
+        final int sizeClass = classOf(data.length);
+        final int ref = allocate(sizeClass);
+        if (ref < 0) {
+            return;
+        }
+        Entry entry = new Entry(ref >>> CHUNK_BITS, ref & ((1 << CHUNK_BITS) - 1), data.length, sizeClass);
+        ByteBuffer buffer = slabs.get(entry.slab).buffer.duplicate();
+        buffer.position(entry.chunk * chunkSizes[sizeClass]);
+        buffer.put(data);
+        slabs.get(entry.slab).keys[entry.chunk] = key;
+        index.put(key, entry);
+        classes[sizeClass].lru.put(key, entry);
+        size += data.length;
+        stats.recordPut();
+    }
+
+    public synchronized void remove(String key) {
+        if (!TextUtils.isEmpty(key)) {
+            removeEntry(key);
+        }
+    }
+
+    private Entry removeEntry(String key) {
+        Entry entry = index.remove(key);
+        if (entry != null) {
+            classes[entry.sizeClass].lru.remove(key);
+            slabs.get(entry.slab).keys[entry.chunk] = null;
+            classes[entry.sizeClass].free.push(entry.slab << CHUNK_BITS | entry.chunk);
+            size -= entry.length;
+        }
+        return entry;
+    }
+
+    private void evict(String key) {
+        Entry entry = removeEntry(key);
+        if (entry != null) {
+            stats.recordEviction(entry.length);
+        }
+    }
+
+    private int classOf(int length) {
+        int i = Arrays.binarySearch(chunkSizes, length);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * @return slab index << CHUNK_BITS | chunk index, negative if the budget can not hold a slab
+     */
+    private int allocate(int sizeClass) {
+        final SizeClass target = classes[sizeClass];
+        if (!target.free.isEmpty()) {
+            return target.free.pop();
+        }
+        if ((long) (slabCount + 1) * slabSize <= maxSize) {
+            assign(newSlab(), sizeClass);
+            return target.free.pop();
+        }
+        final int activeClasses = countActiveClasses();
+        if (target.lru.isEmpty() || target.slabCount * activeClasses < slabCount) {
+            // fewer slabs than average, take one from the class holding the most
+            int richest = -1;
+            for (int i = 0; i < classes.length; i++) {
+                if (i != sizeClass && (richest < 0 || classes[i].slabCount > classes[richest].slabCount)) {
+                    richest = i;
+                }
+            }
+            if (richest >= 0 && classes[richest].slabCount > 0) {
+                Slab slab = null;
+                for (Slab s : slabs) {
+                    if (s != null && s.sizeClass == richest) {
+                        slab = s;// the last one
+                    }
+                }
+                unassign(slab);
+                assign(slab, sizeClass);
+                return target.free.pop();
+            }
+        }
+        if (!target.lru.isEmpty()) {
+            evict(target.lru.keySet().iterator().next());
+            return target.free.pop();
+        }
+        return -1;
+    }
+
+    private int countActiveClasses() {
+        int count = 0;
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.slabCount > 0) {
+                count++;
+            }
+        }
+        return Math.max(1, count);
+    }
+
+    private Slab newSlab() {
+        int slabIndex = slabs.indexOf(null);
+        Slab slab = new Slab(slabIndex < 0 ? slabs.size() : slabIndex, ByteBuffer.allocateDirect(slabSize));
+        if (slabIndex < 0) {
+            slabs.add(slab);
+        } else {
+            slabs.set(slabIndex, slab);
+        }
+        slabCount++;
+        return slab;
+    }
+
+    private void assign(Slab slab, int sizeClass) {
+        final int chunks = slabSize / chunkSizes[sizeClass];
+        slab.sizeClass = sizeClass;
+        slab.keys = new String[chunks];
+        // pushed in reverse, chunks are taken from the start of the slab
+        for (int i = chunks - 1; i >= 0; i--) {
+            classes[sizeClass].free.push(slab.index << CHUNK_BITS | i);
+        }
+        classes[sizeClass].slabCount++;
+    }
+
+    /**
+     * Evict all entries of the slab and take its chunks off the free list.
+     */
+    private void unassign(Slab slab) {
+        for (String key : slab.keys) {
+            if (key != null) {
+                evict(key);
+            }
+        }
+        final SizeClass owner = classes[slab.sizeClass];
+        owner.free.removeSlab(slab.index);
+        owner.slabCount--;
+        slab.sizeClass = -1;
+        slab.keys = null;
+    }
+
+    /**
+     * @return bytes of the cached data
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return bytes of the allocated slabs, includes unused space of chunks
+     */
+    public synchronized long allocatedSize() {
+        return (long) slabCount * slabSize;
+    }
+
+    public long maxSize() {
+        return maxSize;
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Free slabs until the allocated size fits {@code allocatedSize}, the least used slabs go first.
+     */
+    public synchronized void trimToSize(long allocatedSize) {
+        while ((long) slabCount * slabSize > allocatedSize) {
+            Slab leastUsed = null;
+            int leastUsedCount = Integer.MAX_VALUE;
+            for (Slab slab : slabs) {
+                if (slab == null) {
+                    continue;
+                }
+                int used = 0;
+                for (String key : slab.keys) {
+                    if (key != null) {
+                        used++;
+                    }
+                }
+                if (used < leastUsedCount) {
+                    leastUsedCount = used;
+                    leastUsed = slab;
+                }
+            }
+            if (leastUsed == null) {
+                return;
+            }
+            unassign(leastUsed);
+            slabs.set(leastUsed.index, null);
+            slabCount--;
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        final float ratio = MemoryCache.retainRatioOf(level);
+        if (ratio < 1) {
+            trimToSize((long) (allocatedSize() * ratio));
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Drop all entries and slabs, direct memory is freed once the slabs are collected.
+     */
+    public synchronized void clear() {
+        for (Entry entry : index.values()) {
+            stats.recordEviction(entry.length);
+        }
+        index.clear();
+        slabs.clear();
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new SizeClass();
+        }
+        slabCount = 0;
+        size = 0;
+    }
+
+    public void release() {
+        clear();
+    }
+
+    private static final class Slab {
+        final int index;
+        final ByteBuffer buffer;
+        int sizeClass = -1;
+        /**
+         * Key of each chunk, null if free
+         */
+        String[] keys;
+
+        Slab(int index, ByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class SizeClass {
+        // access ordered, eldest first
+        final LinkedHashMap<String, Entry> lru = new LinkedHashMap<>(16, 0.75f, true);
+        final FreeList free = new FreeList();
+        int slabCount;
+    }
+
+    private static final class Entry {
+        final int slab;
+        final int chunk;
+        final int length;
+        final int sizeClass;
+
+        Entry(int slab, int chunk, int length, int sizeClass) {
+            this.slab = slab;
+            this.chunk = chunk;
+            this.length = length;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    /**
+     * Int stack of free chunk refs
+     */
+    private static final class FreeList {
+        int[] refs = new int[64];
+        int count;
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        void push(int ref) {
+            if (count == refs.length) {
+                refs = Arrays.copyOf(refs, count * 2);
+            }
+            refs[count++] = ref;
+        }
+
+        int pop() {
+            return refs[--count];
+        }
+
+        void removeSlab(int slabIndex) {
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (refs[i] >>> CHUNK_BITS != slabIndex) {
+                    refs[kept++] = refs[i];
+                }
+            }
+            count = kept;
+        }
+    }
+
+}
@@ -0,0 +1,816 @@
+package org.pinwheel.agility.cache;
+
+import android.text.TextUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Log-structured disk cache. Values are appended to large memory-mapped segment files,
+ * an in-memory index keeps the offset of every live value. Evicted, replaced and removed
+ * values become dead space, which is reclaimed by background compaction. Removed keys get a
+ * tombstone, evicted keys only while an older dead value of the key is on disk, so that value can
+ * not come back after its successor is dropped. Compaction carries a tombstone only as long.
+ * <p>
+ * Segment layout: magic(4), version(4), then records until a zero key length:
+ * crc32(4), key length(2), value length(4, -1 for remove), key, value.
+ *
+ * @author dnwang
+ */
+public class SegmentDiskCache extends DiskCache {
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;// 4M
+    private static final int SEGMENT_MAGIC = 0x5E67CA5E;
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 10;
+    private static final String SEGMENT_PREFIX = "segment_";
+    /**
+     * Sealed segment with more dead bytes than this ratio will be compacted
+     */
+    private static final float COMPACT_DEAD_RATIO = 0.5f;
+
+    private final File directory;
+    private final int version;
+    private final long maxSize;
+
+    /**
+     * Eldest is least recently used, promoted by {@link #getCache(String)} explicitly
+     * so that {@link #peek(String)} can look up without touching the order
+     */
+    private final LinkedHashMap<String, Location> index;
+    /**
+     * Ordered by id, the last one is the active segment
+     */
+    private final List<Segment> segments;
+    /**
+     * Keys with dead values or tombstones on disk, to tell if a tombstone is needed
+     */
+    private final HashMap<String, Shadow> shadows;
+    private int nextSegmentId;
+    private long size;
+    private boolean closed;
+
+    private final MaintenanceScheduler scheduler = MaintenanceScheduler.getDefault();
+    private final Runnable compactJob = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    };
+
+    public SegmentDiskCache(File path, int version, int cacheSize) {
+        super();
+        this.directory = path;
+        this.version = version;
+        this.maxSize = Math.max(1, cacheSize);
+        this.index = new LinkedHashMap<>();
+        this.segments = new ArrayList<>();
+        this.shadows = new HashMap<>();
+        try {
+            open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            closed = true;
+        }
+    }
+
+    private synchronized void open() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("can not create " + directory);
+        }
+        File[] files = directory.listFiles();
+        List<Integer> ids = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+                    } catch (NumberFormatException e) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+        Integer[] sortedIds = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sortedIds);
+        for (int id : sortedIds) {
+            nextSegmentId = id + 1;
+            Segment segment = null;
+            try {
+                segment = Segment.open(segmentFile(id), id);
+                if (segment == null) {
+                    continue;// other version or broken
+                }
+                if (segment.readInt(0) != SEGMENT_MAGIC || segment.readInt(4) != version) {
+                    segment.close();
+                    segment.file.delete();
+                    continue;
+                }
+                segments.add(segment);
+                replay(segment);
+            } catch (IOException e) {
+                e.printStackTrace();
+                if (segment != null) {
+                    segment.close();
+                }
+                segmentFile(id).delete();
+            }
+        }
+        removeEmptySegments();
+        trimToSize();
+    }
+
+    /**
+     * Rebuild index from segment records, stop at the first broken record.
+     */
+    private void replay(Segment segment) {
+        int offset = SEGMENT_HEADER_SIZE;
+        while (true) {
+            Record record = segment.readRecord(offset);
+            if (record == null) {
+                break;
+            }
+            Location old = index.remove(record.key);
+            if (old != null) {
+                kill(record.key, old);
+                size -= old.valueLength;
+            }
+            if (record.valueLength >= 0) {
+                Location location = new Location(segment, offset, record.size(), record.valueLength);
+                index.put(record.key, location);
+                segment.liveBytes += location.recordSize;
+                size += location.valueLength;
+            } else {
+                segment.deadBytes += record.size();
+                segment.hasTombstone = true;
+                shadowOf(record.key).tombstoneId = segment.id;
+            }
+            offset += record.size();
+        }
+        segment.position = offset;
+    }
+
+    private File segmentFile(int id) {
+        return new File(directory, SEGMENT_PREFIX + id);
+    }
+
+    @Override
+    @Deprecated
+    public boolean isContains(String key) {
+        return contains(key);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return !TextUtils.isEmpty(key) && !closed && index.containsKey(key);
+    }
+
+    @Override
+    public InputStream getCache(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        scheduler.noteActivity();
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            Location location = index.remove(key);
+            if (location == null) {
+                stats.recordMiss();
+                return null;
+            }
+            index.put(key, location);
+            stats.recordHit();
+            return location.openStream();
+        }
+    }
+
+    @Override
+    public InputStream peek(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return null;
+        }
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+            Location location = index.get(key);
+            return location == null ? null : location.openStream();
+        }
+    }
+
+    @Override
+    public synchronized List<String> keys() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    @Override
+    public void setCache(String key, InputStream inputStream) {
+        if (TextUtils.isEmpty(key) || inputStream == null) {
+            return;
+        }
+        scheduler.noteActivity();
+        byte[] value;
+        try {
+            ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream(Math.max(32, inputStream.available()));
+            byte[] buff = new byte[4096];
+            int length;
+            while ((length = inputStream.read(buff)) != -1) {
+                byteOutputStream.write(buff, 0, length);
+            }
+            value = byteOutputStream.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            put(key, value);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appended under one lock, no flush needed.
+     */
+    @Override
+    public synchronized void setCaches(Map<String, byte[]> caches) {
+        if (caches == null) {
+            return;
+        }
+        for (Map.Entry<String, byte[]> entry : caches.entrySet()) {
+            if (TextUtils.isEmpty(entry.getKey()) || entry.getValue() == null) {
+                continue;
+            }
+            try {
+                put(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private synchronized void put(String key, byte[] value) throws IOException {
+        if (closed) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes("UTF-8");
+        Location location = append(keyBytes, value, 0, value.length);
+        stats.recordPut();
+        Location old = index.put(key, location);
+        if (old != null) {
+            kill(key, old);
+            size -= old.valueLength;
+        }
+        size += location.valueLength;
+        trimToSize();
+    }
+
+    @Override
+    public void remove(String key) {
+        if (TextUtils.isEmpty(key)) {
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            Location old = index.remove(key);
+            if (old == null) {
+                return;
+            }
+            kill(key, old);
+            size -= old.valueLength;
+            try {
+                // tombstone, or the value comes back after reopen
+                appendTombstone(key);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            removeEmptySegments();
+            scheduleCompactIfNeeded();
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public void delete() {
+        synchronized (this) {
+            closeSegments();
+            closed = true;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        scheduler.cancel(compactJob);
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            for (Segment segment : segments) {
+                segment.force();
+            }
+            closeSegments();
+            closed = true;
+        }
+        scheduler.cancel(compactJob);
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        index.clear();
+        shadows.clear();
+        size = 0;
+    }
+
+    /**
+     * Append a record to the active segment, a new segment is created if it is full.
+     *
+     * @param valueLength -1 for remove
+     */
+    private Location append(byte[] key, byte[] value, int valueOffset, int valueLength) throws IOException {
+        final int recordSize = RECORD_HEADER_SIZE + key.length + Math.max(0, valueLength);
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || active.capacity - active.position < recordSize) {
+            if (active != null) {
+                active.force();
+            }
+            active = Segment.create(segmentFile(nextSegmentId), nextSegmentId,
+                    Math.max(SEGMENT_SIZE, SEGMENT_HEADER_SIZE + recordSize + RECORD_HEADER_SIZE), version);
+            nextSegmentId++;
+            segments.add(active);
+        }
+        final int offset = active.position;
+        active.writeRecord(offset, key, value, valueOffset, valueLength);
+        active.position += recordSize;
+        if (valueLength >= 0) {
+            active.liveBytes += recordSize;
+        } else {
+            active.deadBytes += recordSize;
+            active.hasTombstone = true;
+        }
+        return new Location(active, offset, recordSize, Math.max(0, valueLength));
+    }
+
+    private void appendTombstone(String key) throws IOException {
+        Location location = append(key.getBytes("UTF-8"), null, 0, -1);
+        shadowOf(key).tombstoneId = location.segment.id;
+    }
+
+    private void kill(String key, Location location) {
+        location.segment.liveBytes -= location.recordSize;
+        location.segment.deadBytes += location.recordSize;
+        shadowOf(key).deadValues++;
+    }
+
+    private Shadow shadowOf(String key) {
+        Shadow shadow = shadows.get(key);
+        if (shadow == null) {
+            shadow = new Shadow();
+            shadows.put(key, shadow);
+        }
+        return shadow;
+    }
+
+    /**
+     * The segment leaves the disk with its dead values and tombstones.
+     */
+    private void dropSegment(Segment segment) {
+        if (!segments.remove(segment)) {
+            return;
+        }
+        int offset = SEGMENT_HEADER_SIZE;
+        while (offset < segment.position) {
+            Record record = segment.readHeader(offset);
+            if (record == null) {
+                break;
+            }
+            Shadow shadow = shadows.get(record.key);
+            if (shadow != null) {
+                if (record.valueLength >= 0) {
+                    shadow.deadValues--;
+                } else if (shadow.tombstoneId == segment.id) {
+                    shadow.tombstoneId = -1;
+                }
+                if (shadow.deadValues <= 0 && shadow.tombstoneId < 0) {
+                    shadows.remove(record.key);
+                }
+            }
+            offset += record.size();
+        }
+        segment.close();
+        segment.file.delete();
+    }
+
+    private void trimToSize() {
+        if (size > maxSize) {
+            Iterator<Map.Entry<String, Location>> iterator = index.entrySet().iterator();
+            while (size > maxSize && iterator.hasNext()) {
+                Map.Entry<String, Location> eldest = iterator.next();
+                final String key = eldest.getKey();
+                final Location location = eldest.getValue();
+                iterator.remove();
+                // the evicted value itself may come back, it was current; an older value must not
+                final Shadow shadow = shadows.get(key);
+                final boolean shadowing = shadow != null && shadow.deadValues > 0 && location.segment != segments.get(0);
+                kill(key, location);
+                size -= location.valueLength;
+                stats.recordEviction(location.valueLength);
+                if (shadowing) {
+                    try {
+                        appendTombstone(key);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        removeEmptySegments();
+        scheduleCompactIfNeeded();
+    }
+
+    /**
+     * Sealed segments without live value can be dropped directly: each dead value is shadowed by
+     * a newer value or tombstone of a later segment. Tombstones only matter while an older segment
+     * exists, so only the oldest one may go with them.
+     */
+    private void removeEmptySegments() {
+        for (int i = 0; i < segments.size() - 1; ) {
+            Segment segment = segments.get(i);
+            if (segment.liveBytes <= 0 && (i == 0 || !segment.hasTombstone)) {
+                dropSegment(segment);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    private void scheduleCompactIfNeeded() {
+        if (findCompactTarget() != null && !closed) {
+            scheduler.schedule(compactJob);
+        }
+    }
+
+    private Segment findCompactTarget() {
+        // oldest first, so tombstones can be dropped from the oldest segment
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Segment segment = segments.get(i);
+            if (segment.deadBytes >= (segment.position - SEGMENT_HEADER_SIZE) * COMPACT_DEAD_RATIO) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy live records of sparse segments to the active segment, then drop them.
+     * Sealed segments are never written again, records are read without lock.
+     */
+    private void compact() throws IOException {
+        while (true) {
+            Segment target;
+            boolean oldest;
+            int end;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                target = findCompactTarget();
+                if (target == null) {
+                    return;
+                }
+                oldest = segments.indexOf(target) == 0;
+                end = target.position;
+            }
+            int offset = SEGMENT_HEADER_SIZE;
+            while (offset < end) {
+                Record record = target.readRecord(offset);
+                if (record == null) {
+                    break;
+                }
+                synchronized (this) {
+                    if (closed) {
+                        return;
+                    }
+                    if (!segments.contains(target)) {
+                        break;// dropped as empty meanwhile
+                    }
+                    if (record.valueLength >= 0) {
+                        Location location = index.get(record.key);
+                        if (location != null && location.segment == target && location.recordOffset == offset) {
+                            Location moved = append(record.keyBytes, target.readBytes(offset + RECORD_HEADER_SIZE + record.keyBytes.length, record.valueLength), 0, record.valueLength);
+                            kill(record.key, location);
+                            index.put(record.key, moved);// same key, keeps its order
+                        }
+                    } else if (!oldest && !index.containsKey(record.key)) {
+                        // only the newest tombstone of the key, and while an older value may be on disk
+                        Shadow shadow = shadows.get(record.key);
+                        if (shadow != null && shadow.deadValues > 0 && shadow.tombstoneId == target.id) {
+                            appendTombstone(record.key);
+                        }
+                    }
+                }
+                offset += record.size();
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                dropSegment(target);
+            }
+        }
+    }
+
+    private static final class Record {
+        String key;
+        byte[] keyBytes;
+        int valueLength;
+
+        int size() {
+            return RECORD_HEADER_SIZE + keyBytes.length + Math.max(0, valueLength);
+        }
+    }
+
+    private static final class Shadow {
+        // dead values of the key still on disk
+        int deadValues;
+        // segment of the newest tombstone of the key, -1 if none
+        int tombstoneId = -1;
+    }
+
+    private static final class Location {
+        final Segment segment;
+        final int recordOffset;
+        final int recordSize;
+        final int valueLength;
+
+        Location(Segment segment, int recordOffset, int recordSize, int valueLength) {
+            this.segment = segment;
+            this.recordOffset = recordOffset;
+            this.recordSize = recordSize;
+            this.valueLength = valueLength;
+        }
+
+        InputStream openStream() {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int valueOffset = recordOffset + recordSize - valueLength;
+            buffer.limit(valueOffset + valueLength);
+            buffer.position(valueOffset);
+            return new ByteBufferInputStream(buffer.slice());
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final int id;
+        final int capacity;
+        private RandomAccessFile randomAccessFile;
+        private MappedByteBuffer buffer;
+        int position;
+        long liveBytes;
+        long deadBytes;
+        boolean hasTombstone;
+
+        private Segment(File file, int id, RandomAccessFile randomAccessFile, int capacity) throws IOException {
+            this.file = file;
+            this.id = id;
+            this.capacity = capacity;
+            this.randomAccessFile = randomAccessFile;
+            this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            this.position = SEGMENT_HEADER_SIZE;
+        }
+
+        static Segment open(File file, int id) throws IOException {
+            long length = file.length();
+            if (length < SEGMENT_HEADER_SIZE || length > Integer.MAX_VALUE) {
+                file.delete();
+                return null;
+            }
+            return new Segment(file, id, new RandomAccessFile(file, "rw"), (int) length);
+        }
+
+        static Segment create(File file, int id, int capacity, int version) throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(capacity);
+            Segment segment = new Segment(file, id, randomAccessFile, capacity);
+            segment.buffer.putInt(0, SEGMENT_MAGIC);
+            segment.buffer.putInt(4, version);
+            return segment;
+        }
+
+        int readInt(int offset) {
+            return buffer.getInt(offset);
+        }
+
+        byte[] readBytes(int offset, int length) {
+            byte[] bytes = new byte[length];
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset);
+            duplicate.get(bytes);
+            return bytes;
+        }
+
+        /**
+         * Key and lengths of a record below {@link #position}, checked when written or replayed.
+         */
+        Record readHeader(int offset) {
+            if (offset + RECORD_HEADER_SIZE > position) {
+                return null;
+            }
+            Record record = new Record();
+            record.keyBytes = readBytes(offset + RECORD_HEADER_SIZE, buffer.getShort(offset + 4) & 0xFFFF);
+            try {
+                record.key = new String(record.keyBytes, "UTF-8");
+            } catch (IOException e) {
+                return null;
+            }
+            record.valueLength = buffer.getInt(offset + 6);
+            return record;
+        }
+
+        /**
+         * @return null if end of segment or broken
+         */
+        Record readRecord(int offset) {
+            if (offset + RECORD_HEADER_SIZE > capacity) {
+                return null;
+            }
+            final int crc = buffer.getInt(offset);
+            final int keyLength = buffer.getShort(offset + 4) & 0xFFFF;
+            final int valueLength = buffer.getInt(offset + 6);
+            if (keyLength == 0 || valueLength < -1
+                    || (long) offset + RECORD_HEADER_SIZE + keyLength + Math.max(0, valueLength) > capacity) {
+                return null;
+            }
+            CRC32 crc32 = new CRC32();
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset + 4);
+            byte[] chunk = new byte[Math.min(8192, RECORD_HEADER_SIZE - 4 + keyLength + Math.max(0, valueLength))];
+            int remain = RECORD_HEADER_SIZE - 4 + keyLength + Math.max(0, valueLength);
+            while (remain > 0) {
+                int length = Math.min(chunk.length, remain);
+                duplicate.get(chunk, 0, length);
+                crc32.update(chunk, 0, length);
+                remain -= length;
+            }
+            if ((int) crc32.getValue() != crc) {
+                return null;
+            }
+            Record record = new Record();
+            record.keyBytes = readBytes(offset + RECORD_HEADER_SIZE, keyLength);
+            try {
+                record.key = new String(record.keyBytes, "UTF-8");
+            } catch (IOException e) {
+                return null;
+            }
+            record.valueLength = valueLength;
+            return record;
+        }
+
+        /**
+         * Data first, crc last: a record interrupted by crash fails the check.
+         */
+        void writeRecord(int offset, byte[] key, byte[] value, int valueOffset, int valueLength) {
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset + 4);
+            duplicate.putShort((short) key.length);
+            duplicate.putInt(valueLength);
+            duplicate.put(key);
+            if (valueLength > 0) {
+                duplicate.put(value, valueOffset, valueLength);
+            }
+            CRC32 crc32 = new CRC32();
+            byte[] header = new byte[RECORD_HEADER_SIZE - 4];
+            header[0] = (byte) (key.length >>> 8);
+            header[1] = (byte) key.length;
+            header[2] = (byte) (valueLength >>> 24);
+            header[3] = (byte) (valueLength >>> 16);
+            header[4] = (byte) (valueLength >>> 8);
+            header[5] = (byte) valueLength;
+            crc32.update(header);
+            crc32.update(key);
+            if (valueLength > 0) {
+                crc32.update(value, valueOffset, valueLength);
+            }
+            buffer.putInt(offset, (int) crc32.getValue());
+        }
+
+        void force() {
+            try {
+                buffer.force();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        void close() {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read view of a mapped value, no copy.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        private int mark;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skip = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skip);
+            return skip;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = buffer.position();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.position(mark);
+        }
+    }
+
+}
@@ -0,0 +1,238 @@
+package org.pinwheel.agility.cache;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * W-TinyLFU: new entries enter a small LRU window, entries leaving the window must be
+ * more frequent than the eldest entry of the main segmented LRU to be admitted,
+ * so one-off keys of a long scroll can not flush the entries reused everywhere.
+ * Main is split into probation and protected, a second hit promotes to protected.
+ *
+ * @author dnwang
+ */
+class TinyLfuCache implements MemoryCache.Segment {
+
+    private static final float WINDOW_RATIO = 0.01f;
+    private static final float PROTECTED_RATIO = 0.8f;
+
+    private final int maxSize;
+    // insertion ordered, eldest first, move to tail on access
+    private final LinkedHashMap<String, ObjectEntity> window;
+    private final LinkedHashMap<String, ObjectEntity> probation;
+    private final LinkedHashMap<String, ObjectEntity> protect;
+    private int windowSize;
+    private int probationSize;
+    private int protectedSize;
+    private final FrequencySketch sketch;
+
+    TinyLfuCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.window = new LinkedHashMap<>();
+        this.probation = new LinkedHashMap<>();
+        this.protect = new LinkedHashMap<>();
+        this.sketch = new FrequencySketch();
+    }
+
+    protected void entryRemoved(boolean evicted, String key, ObjectEntity oldValue, ObjectEntity newValue) {
+    }
+
+    @Override
+    public ObjectEntity get(String key) {
+        synchronized (this) {
+            sketch.increment(key);
+            ObjectEntity value = window.remove(key);
+            if (value != null) {
+                window.put(key, value);
+                return value;
+            }
+            value = protect.remove(key);
+            if (value != null) {
+                protect.put(key, value);
+                return value;
+            }
+            value = probation.remove(key);
+            if (value != null) {
+                final int size = value.sizeOf();
+                probationSize -= size;
+                protect.put(key, value);
+                protectedSize += size;
+                demoteProtected();
+            }
+            return value;
+        }
+    }
+
+    @Override
+    public synchronized ObjectEntity peek(String key) {
+        ObjectEntity value = window.get(key);
+        if (value == null) {
+            value = probation.get(key);
+        }
+        return value == null ? protect.get(key) : value;
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return window.containsKey(key) || probation.containsKey(key) || protect.containsKey(key);
+    }
+
+    @Override
+    public ObjectEntity put(String key, ObjectEntity value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        ObjectEntity previous;
+        synchronized (this) {
+            sketch.increment(key);
+            previous = removeEntry(key);
+            window.put(key, value);
+            windowSize += value.sizeOf();
+            sketch.ensureCapacity(window.size() + probation.size() + protect.size());
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    @Override
+    public ObjectEntity remove(String key) {
+        ObjectEntity previous;
+        synchronized (this) {
+            previous = removeEntry(key);
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    private ObjectEntity removeEntry(String key) {
+        ObjectEntity value = window.remove(key);
+        if (value != null) {
+            windowSize -= value.sizeOf();
+            return value;
+        }
+        value = probation.remove(key);
+        if (value != null) {
+            probationSize -= value.sizeOf();
+            return value;
+        }
+        value = protect.remove(key);
+        if (value != null) {
+            protectedSize -= value.sizeOf();
+        }
+        return value;
+    }
+
+    /**
+     * Keep protected within its share of main, the overflow goes back to probation.
+     */
+    private void demoteProtected() {
+        Iterator<Map.Entry<String, ObjectEntity>> iterator = protect.entrySet().iterator();
+        while (protectedSize > PROTECTED_RATIO * (protectedSize + probationSize) && iterator.hasNext()) {
+            Map.Entry<String, ObjectEntity> eldest = iterator.next();
+            iterator.remove();
+            final int size = eldest.getValue().sizeOf();
+            protectedSize -= size;
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationSize += size;
+        }
+    }
+
+    @Override
+    public synchronized Map<String, ObjectEntity> snapshot() {
+        Map<String, ObjectEntity> snapshot = new LinkedHashMap<>(window);
+        snapshot.putAll(probation);
+        snapshot.putAll(protect);
+        return snapshot;
+    }
+
+    @Override
+    public synchronized int size() {
+        return windowSize + probationSize + protectedSize;
+    }
+
+    @Override
+    public void trimToSize(int maxSize) {
+        while (true) {
+            Map.Entry<String, ObjectEntity> evicted;
+            synchronized (this) {
+                if (size() <= maxSize || window.isEmpty() && probation.isEmpty() && protect.isEmpty()) {
+                    break;
+                }
+                evicted = evictOne(maxSize);
+            }
+            if (evicted != null) {
+                entryRemoved(true, evicted.getKey(), evicted.getValue(), null);
+            }
+        }
+    }
+
+    /**
+     * @return evicted entry, null if the window candidate only moved to probation
+     */
+    private Map.Entry<String, ObjectEntity> evictOne(int maxSize) {
+        final int windowMax = (int) (maxSize * WINDOW_RATIO);
+        if (windowSize > windowMax && !window.isEmpty()) {
+            Map.Entry<String, ObjectEntity> candidate = removeEldest(window);
+            final int candidateSize = candidate.getValue().sizeOf();
+            windowSize -= candidateSize;
+            Map.Entry<String, ObjectEntity> evicted = null;
+            if (probationSize + protectedSize + candidateSize > maxSize - windowMax) {
+                // main is full, admit only if more frequent than its eldest
+                Map.Entry<String, ObjectEntity> victim = eldest(probation.isEmpty() ? protect : probation);
+                if (victim != null && sketch.frequency(candidate.getKey()) <= sketch.frequency(victim.getKey())) {
+                    return candidate;
+                }
+                // evict the victim before the candidate joins probation
+                evicted = victim == null ? null : evictEldest();
+            }
+            probation.put(candidate.getKey(), candidate.getValue());
+            probationSize += candidate.getValue().sizeOf();
+            return evicted;
+        }
+        return evictEldest();
+    }
+
+    private Map.Entry<String, ObjectEntity> evictEldest() {
+        if (!probation.isEmpty()) {
+            Map.Entry<String, ObjectEntity> eldest = removeEldest(probation);
+            probationSize -= eldest.getValue().sizeOf();
+            return eldest;
+        }
+        if (!protect.isEmpty()) {
+            Map.Entry<String, ObjectEntity> eldest = removeEldest(protect);
+            protectedSize -= eldest.getValue().sizeOf();
+            return eldest;
+        }
+        Map.Entry<String, ObjectEntity> eldest = removeEldest(window);
+        windowSize -= eldest.getValue().sizeOf();
+        return eldest;
+    }
+
+    private static Map.Entry<String, ObjectEntity> eldest(LinkedHashMap<String, ObjectEntity> map) {
+        return map.isEmpty() ? null : map.entrySet().iterator().next();
+    }
+
+    private static Map.Entry<String, ObjectEntity> removeEldest(LinkedHashMap<String, ObjectEntity> map) {
+        Iterator<Map.Entry<String, ObjectEntity>> iterator = map.entrySet().iterator();
+        Map.Entry<String, ObjectEntity> eldest = iterator.next();
+        // entry of LinkedHashMap is reused after removal, keep a copy
+        Map.Entry<String, ObjectEntity> copy = new AbstractMap.SimpleImmutableEntry<>(eldest);
+        iterator.remove();
+        return copy;
+    }
+
+}
@@ -0,0 +1,274 @@
+package org.pinwheel.agility.cache;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+import org.pinwheel.agility.util.callback.Function1;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * The hottest keys of a cache, persisted so that the next launch can load them into memory
+ * before they are asked for. Accesses are counted, a count halves every {@link #HALF_LIFE}
+ * since the last access and at every launch, so keys of the recent sessions win.
+ * The manifest is written when the app is hidden (register it for trim callbacks) and
+ * when the owner is released.
+ * <p>
+ * File: magic(4), version(4), count(4), then key(utf), hits(4), hottest first.
+ *
+ * @author dnwang
+ */
+public class WarmUpManifest implements ComponentCallbacks2 {
+
+    private static final int MAGIC = 0x5741524D;
+    private static final int VERSION = 1;
+    private static final long HALF_LIFE = 30 * 60 * 1000;// 30min
+    /**
+     * Keys tracked per key kept in the manifest
+     */
+    private static final int TRACK_FACTOR = 8;
+
+    private final File file;
+    private final int maxKeys;
+    private final ConcurrentHashMap<String, Hit> hits;
+    private final MaintenanceScheduler scheduler = MaintenanceScheduler.getDefault();
+    private final Runnable saveJob = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+    private final Runnable pruneJob = new Runnable() {
+        @Override
+        public void run() {
+            prune();
+        }
+    };
+    private volatile Runnable prefetchJob;
+    private volatile boolean released;
+
+    /**
+     * @param maxKeys keys kept in the manifest
+     */
+    public WarmUpManifest(File file, int maxKeys) {
+        this.file = file;
+        this.maxKeys = Math.max(1, maxKeys);
+        this.hits = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Count an access, cheap enough for every get.
+     */
+    public void record(String key) {
+        if (key == null || released) {
+            return;
+        }
+        Hit hit = hits.get(key);
+        if (hit == null) {
+            if (hits.size() >= maxKeys * TRACK_FACTOR) {
+                // ranking sorts all tracked keys, not on the caller's thread
+                scheduler.schedule(pruneJob);
+            }
+            hit = new Hit(0);
+            Hit old = hits.putIfAbsent(key, hit);
+            if (old != null) {
+                hit = old;
+            }
+        }
+        // racy, counts are estimates
+        hit.count++;
+        hit.lastAccess = System.currentTimeMillis();
+    }
+
+    /**
+     * Keys of the last manifest, hottest first. Their counts carry over, halved.
+     */
+    public List<String> load() {
+        List<String> keys = new ArrayList<>();
+        if (!file.exists()) {
+            return keys;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return keys;
+            }
+            final int count = Math.min(in.readInt(), maxKeys);
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final int count0 = in.readInt();
+                keys.add(key);
+                Hit hit = new Hit(count0 / 2f);
+                hit.lastAccess = now;
+                hits.putIfAbsent(key, hit);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(in);
+        }
+        return keys;
+    }
+
+    /**
+     * Write the hottest keys, replacing the last manifest.
+     */
+    public synchronized void save() {
+        final List<Map.Entry<String, Float>> ranked = rank();
+        final int count = Math.min(maxKeys, ranked.size());
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                out.writeUTF(ranked.get(i).getKey());
+                out.writeInt(Math.max(1, Math.round(ranked.get(i).getValue())));
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename " + tmp + " failed");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Read the last manifest and load its keys as a maintenance job, hottest first,
+     * until {@code budget} bytes are loaded. The caller's thread reads no file.
+     *
+     * @param loader load a key into memory, return the bytes it takes, 0 if missed or in memory already
+     */
+    public void prefetch(final Function1<Long, String> loader, final long budget) {
+        if (budget <= 0 || released) {
+            return;
+        }
+        final Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                long loaded = 0;
+                for (String key : load()) {
+                    if (released || loaded >= budget) {
+                        break;
+                    }
+                    try {
+                        Long bytes = loader.call(key);
+                        loaded += bytes == null ? 0 : bytes;
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        prefetchJob = job;
+        scheduler.schedule(job);
+    }
+
+    private List<Map.Entry<String, Float>> rank() {
+        final long now = System.currentTimeMillis();
+        List<Map.Entry<String, Float>> ranked = new ArrayList<>(hits.size());
+        for (Map.Entry<String, Hit> entry : hits.entrySet()) {
+            ranked.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), entry.getValue().score(now)));
+        }
+        Collections.sort(ranked, new Comparator<Map.Entry<String, Float>>() {
+            @Override
+            public int compare(Map.Entry<String, Float> lhs, Map.Entry<String, Float> rhs) {
+                return Float.compare(rhs.getValue(), lhs.getValue());
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Keep the hottest half of the tracked keys.
+     */
+    private synchronized void prune() {
+        if (hits.size() < maxKeys * TRACK_FACTOR) {
+            return;
+        }
+        final List<Map.Entry<String, Float>> ranked = rank();
+        for (int i = ranked.size() / 2; i < ranked.size(); i++) {
+            hits.remove(ranked.get(i).getKey());
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_UI_HIDDEN && !released) {
+            scheduler.schedule(saveJob);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Stop recording and prefetching, the owner calls {@link #save()} before if needed.
+     */
+    public void release() {
+        released = true;
+        scheduler.cancel(saveJob);
+        scheduler.cancel(pruneJob);
+        final Runnable prefetchJob = this.prefetchJob;
+        if (prefetchJob != null) {
+            scheduler.cancel(prefetchJob);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class Hit {
+        volatile float count;
+        volatile long lastAccess;
+
+        Hit(float count) {
+            this.count = count;
+        }
+
+        float score(long now) {
+            final long age = Math.max(0, now - lastAccess);
+            return (float) (count * Math.pow(0.5, (double) age / HALF_LIFE));
+        }
+    }
+
+}
@@ -6,9 +6,15 @@ import android.media.ThumbnailUtils;
 import android.os.Build;
 
 import org.pinwheel.agility.cache.ObjectEntity;
+import org.pinwheel.agility.util.IOUtils;
+import org.pinwheel.agility.util.callback.Function0;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -23,20 +29,36 @@ import java.io.InputStream;
 final class BitmapEntity extends ObjectEntity<Bitmap> {
 
     private Bitmap.Config config;
+    /**
+     * Optional, decodes reuse its bitmaps
+     */
+    private BitmapPool bitmapPool;
+    /**
+     * Its bitmap was put to the pool when it left the memory cache, guarded by the pool
+     */
+    boolean pooled;
 
     public BitmapEntity() {
         this(Bitmap.Config.ARGB_8888);
     }
 
     public BitmapEntity(Bitmap.Config config) {
+        this(config, null);
+    }
+
+    public BitmapEntity(Bitmap.Config config, BitmapPool bitmapPool) {
         this.config = config;
+        this.bitmapPool = bitmapPool;
     }
 
     private BitmapFactory.Options getOptions() {
         BitmapFactory.Options options = new BitmapFactory.Options();
         options.inPreferredConfig = this.config;
-        options.inPurgeable = true;
-        options.inInputShareable = true;
+        if (bitmapPool == null) {
+            // purgeable bitmaps can not be reused
+            options.inPurgeable = true;
+            options.inInputShareable = true;
+        }
         return options;
     }
 
@@ -65,10 +87,7 @@ final class BitmapEntity extends ObjectEntity<Bitmap> {
 
     @Override
     public void decodeFrom(byte[] bytes) {
-        if (bytes == null || bytes.length == 0) {
-            return;
-        }
-        setObj(BitmapFactory.decodeByteArray(bytes, 0, bytes.length, getOptions()));
+        decodeFrom(bytes, null);
     }
 
     @Deprecated
@@ -77,49 +96,105 @@ final class BitmapEntity extends ObjectEntity<Bitmap> {
         throw new UnsupportedOperationException();
     }
 
-    protected void decodeFrom(byte[] bytes, BitmapReceiver.Options options) {
-        if (options.getFixedWidth() > 0 && options.getFixedHeight() > 0) {
-            decodeByFixedBound(bytes, options.getFixedWidth(), options.getFixedHeight());
-        } else if (options.getMaxWidth() < 0 || options.getMaxHeight() < 0) {
-            decodeFrom(bytes);
-        } else {
-            if (options instanceof ViewReceiver.Options) {
-                decodeByMaxBound(bytes, options.getMaxWidth(), options.getMaxHeight());
-                // TODO: 1/7/16  else something to do
-            } else {
-                decodeByMaxBound(bytes, options.getMaxWidth(), options.getMaxHeight());
-            }
+    /**
+     * @param options null to decode at full size
+     */
+    protected void decodeFrom(final byte[] bytes, BitmapReceiver.Options options) {
+        if (bytes == null || bytes.length == 0) {
+            return;
         }
+        decodeFrom(new Source() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+            }
+        }, options);
     }
 
     /**
-     * According fixed bound
+     * Both passes read the file by its descriptor, which is not moved by a decode.
+     *
+     * @param options null to decode at full size
      */
-    @Deprecated
-    protected void decodeByFixedBound(byte[] bytes, int fixedWidth, int fixedHeight) {
-        decodeByMaxBound(bytes, (int) (fixedWidth * 1.5), (int) (fixedHeight * 1.5));
-        Bitmap bitmap = get();
-        if (bitmap != null) {
-            setObj(ThumbnailUtils.extractThumbnail(bitmap, fixedWidth, fixedHeight, ThumbnailUtils.OPTIONS_RECYCLE_INPUT));
+    protected void decodeFrom(File file, BitmapReceiver.Options options) {
+        final FileInputStream inputStream;
+        try {
+            inputStream = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            return;
         }
+        decodeFrom(new Source() {
+            @Override
+            Bitmap decode(BitmapFactory.Options options) throws IOException {
+                return BitmapFactory.decodeFileDescriptor(inputStream.getFD(), null, options);
+            }
+
+            @Override
+            void close() {
+                IOUtils.close(inputStream);
+            }
+        }, options);
     }
 
     /**
-     * According max bound, auto resize
+     * Both passes read one stream, rewound by mark/reset; if the bounds pass read past
+     * the mark, the stream is opened again. The stream is read to its end at last, so
+     * a checked disk cache stream verifies the data, a failed check drops the bitmap.
+     *
+     * @param opener  open the data, called again to rewind, null if missing
+     * @param options null to decode at full size
      */
-    protected void decodeByMaxBound(byte[] bytes, int maxWidth, int maxHeight) {
-        if (maxWidth < 0 || maxHeight < 0) {
-            return;
-        }
-        if (bytes == null || bytes.length == 0) {
-            return;
+    protected void decodeFrom(Function0<InputStream> opener, BitmapReceiver.Options options) {
+        decodeFrom(new StreamSource(opener), options);
+    }
+
+    private void decodeFrom(Source source, BitmapReceiver.Options options) {
+        final boolean fixed = options != null && options.getFixedWidth() > 0 && options.getFixedHeight() > 0;
+        final boolean sampled = fixed || (options != null && options.getMaxWidth() >= 0 && options.getMaxHeight() >= 0);
+        try {
+            BitmapFactory.Options decodeOptions = getOptions();
+            if (sampled || bitmapPool != null) {
+                decodeOptions.inJustDecodeBounds = true;
+                source.decode(decodeOptions);
+                decodeOptions.inJustDecodeBounds = false;
+            }
+            if (fixed) {
+                // decode a bit larger, then crop to the fixed bound
+                final int maxWidth = (int) (options.getFixedWidth() * 1.5);
+                final int maxHeight = (int) (options.getFixedHeight() * 1.5);
+                decodeOptions.inSampleSize = computeSampleSize(decodeOptions, -1, maxWidth * maxHeight);
+            } else if (sampled) {
+                decodeOptions.inSampleSize = computeSampleSize(decodeOptions, -1, options.getMaxWidth() * options.getMaxHeight());
+            }
+            Bitmap bitmap = null;
+            boolean reused = false;
+            if (bitmapPool != null) {
+                bitmapPool.applyTo(decodeOptions);
+                if (decodeOptions.inBitmap != null) {
+                    try {
+                        bitmap = source.decode(decodeOptions);
+                        reused = true;
+                    } catch (IllegalArgumentException e) {
+                        // not reusable for this image after all
+                        decodeOptions.inBitmap = null;
+                    }
+                }
+            }
+            if (!reused) {
+                bitmap = source.decode(decodeOptions);
+            }
+            source.verify();
+            if (fixed && bitmap != null) {
+                bitmap = ThumbnailUtils.extractThumbnail(bitmap, options.getFixedWidth(), options.getFixedHeight(),
+                        ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+            }
+            setObj(bitmap);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            source.close();
         }
-        BitmapFactory.Options options = getOptions();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
-        options.inSampleSize = computeSampleSize(options, -1, maxWidth * maxHeight);
-        options.inJustDecodeBounds = false;
-        setObj(BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options));
     }
 
     @Override
@@ -128,10 +203,8 @@ final class BitmapEntity extends ObjectEntity<Bitmap> {
         if (bitmap == null || bitmap.isRecycled()) {
             return 0;
         }
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            return bitmap.getAllocationByteCount();
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
-            return bitmap.getByteCount();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+            return BitmapPool.byteCountOf(bitmap);
         } else {
             return bitmap.getRowBytes() * bitmap.getHeight();
         }
@@ -171,4 +244,100 @@ final class BitmapEntity extends ObjectEntity<Bitmap> {
         }
     }
 
+    /**
+     * Data of one decode, read by the bounds pass and the decode pass
+     */
+    private abstract static class Source {
+        abstract Bitmap decode(BitmapFactory.Options options) throws IOException;
+
+        /**
+         * Called after the decode pass
+         */
+        void verify() throws IOException {
+        }
+
+        void close() {
+        }
+    }
+
+    private static final class StreamSource extends Source {
+        /**
+         * Bytes the bounds pass may read and still be rewound, buffered only as far as read
+         */
+        private static final int MARK_LIMIT = 512 * 1024;
+
+        private final Function0<InputStream> opener;
+        private ReadThroughInputStream inputStream;
+
+        StreamSource(Function0<InputStream> opener) {
+            this.opener = opener;
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options options) throws IOException {
+            if (inputStream != null) {
+                try {
+                    inputStream.reset();
+                } catch (IOException e) {
+                    // read past the mark, or the platform moved it
+                    close();
+                }
+            }
+            if (inputStream == null) {
+                InputStream in = opener.call();
+                if (in == null) {
+                    throw new FileNotFoundException("no data");
+                }
+                inputStream = new ReadThroughInputStream(in);
+            }
+            if (options.inJustDecodeBounds) {
+                inputStream.mark(MARK_LIMIT);
+            } else {
+                // drop the mark, the decode pass is not buffered
+                inputStream.mark(0);
+            }
+            return BitmapFactory.decodeStream(inputStream, null, options);
+        }
+
+        @Override
+        void verify() throws IOException {
+            if (inputStream != null) {
+                inputStream.skip(Long.MAX_VALUE);
+            }
+        }
+
+        @Override
+        void close() {
+            IOUtils.close(inputStream);
+            inputStream = null;
+        }
+    }
+
+    /**
+     * Skipped bytes are read, not seeked over, so a checked stream covers them too.
+     */
+    private static final class ReadThroughInputStream extends BufferedInputStream {
+        private byte[] scratch;
+
+        ReadThroughInputStream(InputStream in) {
+            super(in, 16 * 1024);
+        }
+
+        @Override
+        public synchronized long skip(long count) throws IOException {
+            if (scratch == null) {
+                scratch = new byte[4 * 1024];
+            }
+            long skipped = 0;
+            while (skipped < count) {
+                final int read = read(scratch, 0, (int) Math.min(scratch.length, count - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+    }
+
 }
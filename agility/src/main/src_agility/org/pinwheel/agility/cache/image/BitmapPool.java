@@ -0,0 +1,381 @@
+package org.pinwheel.agility.cache.image;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import org.pinwheel.agility.cache.CacheStats;
+import org.pinwheel.agility.cache.MemoryCache;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Mutable bitmaps kept for {@link BitmapFactory.Options#inBitmap}, so a decode reuses the pixels
+ * of an evicted bitmap instead of allocating new ones. From KitKat a bitmap is reusable by any
+ * decode that fits its allocation; before KitKat only by a decode of the same width, height and
+ * config, without sampling, of a jpeg or png. The eldest bitmaps are dropped over the budget.
+ * <p>
+ * A bitmap evicted from the memory cache is only pooled once nothing draws it: the loader holds
+ * it while it is delivered, each view holds what it shows, and a bitmap handed to other code is
+ * pinned and never pooled.
+ *
+ * @author dnwang
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+
+    private static final boolean REUSE_BY_SIZE = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    /**
+     * A bitmap larger than this times the decode is not taken, it wastes too much memory
+     */
+    private static final int MAX_OVERSIZE = 4;
+
+    private final int maxSize;
+    private int size;
+    // put order, eldest first
+    private final LinkedHashMap<Bitmap, Integer> bitmaps;
+    // from KitKat, by allocation bytes
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> bySize;
+    // before KitKat, by width, height and config
+    private final HashMap<String, ArrayDeque<Bitmap>> byShape;
+    // entity each recycled bitmap came from, it may take the bitmap back while pooled
+    private final HashMap<Bitmap, BitmapEntity> owners;
+    // holds of the bitmaps in use, weak so a dropped one is not kept
+    private final WeakHashMap<Bitmap, Usage> usages;
+    private final CacheStats stats = new CacheStats("BitmapPool");
+
+    /**
+     * @param maxSize max bytes of the pooled bitmaps
+     */
+    public BitmapPool(int maxSize) {
+        this.maxSize = Math.max(0, maxSize);
+        this.bitmaps = new LinkedHashMap<>();
+        this.bySize = new TreeMap<>();
+        this.byShape = new HashMap<>();
+        this.owners = new HashMap<>();
+        this.usages = new WeakHashMap<>();
+    }
+
+    /**
+     * Keep the bitmap for reuse, it must not be drawn anymore.
+     *
+     * @return false if it can not be reused: immutable, recycled, held or larger than the budget
+     */
+    public synchronized boolean put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null || bitmaps.containsKey(bitmap) || usages.containsKey(bitmap)) {
+            return false;
+        }
+        final int bytes = byteCountOf(bitmap);
+        if (bytes > maxSize) {
+            return false;
+        }
+        bitmaps.put(bitmap, bytes);
+        if (REUSE_BY_SIZE) {
+            groupOf(bySize, bytes).addLast(bitmap);
+        } else {
+            groupOf(byShape, shapeOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig())).addLast(bitmap);
+        }
+        size += bytes;
+        stats.recordPut();
+        trimToSize(maxSize);
+        return true;
+    }
+
+    /**
+     * Take a bitmap that a decode of {@code width x height} in {@code config} can reuse.
+     *
+     * @return null if none
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+        if (REUSE_BY_SIZE) {
+            final long required = (long) width * height * bytesPerPixel(config);
+            final Integer bytes = bySize.ceilingKey((int) Math.min(Integer.MAX_VALUE, required));
+            if (bytes != null && bytes <= required * MAX_OVERSIZE) {
+                bitmap = poll(bySize, bytes);
+            }
+        } else {
+            bitmap = poll(byShape, shapeOf(width, height, config));
+        }
+        if (bitmap == null) {
+            stats.recordMiss();
+            return null;
+        }
+        size -= bitmaps.remove(bitmap);
+        owners.remove(bitmap);
+        stats.recordHit();
+        return bitmap;
+    }
+
+    /**
+     * The entity left the memory cache, pool its bitmap now or once the last hold is released.
+     */
+    synchronized void recycle(BitmapEntity entity) {
+        final Bitmap bitmap = entity.get();
+        if (bitmap == null) {
+            return;
+        }
+        Usage usage = usages.get(bitmap);
+        if (usage != null) {
+            if (!usage.pinned) {
+                usage.evict(entity);
+            }
+            return;
+        }
+        pool(bitmap, entity);
+    }
+
+    /**
+     * Hold the bitmap of a cached entity, which may be evicted and pooled meanwhile. A pooled
+     * bitmap is taken back, unless a decode has reused it.
+     *
+     * @return false if its pixels belong to another image now
+     */
+    synchronized boolean hold(BitmapEntity entity) {
+        final Bitmap bitmap = entity.get();
+        if (bitmap == null) {
+            return false;
+        }
+        if (entity.pooled) {
+            if (owners.get(bitmap) != entity) {
+                return false;
+            }
+            remove(bitmap);
+            entity.pooled = false;
+            usageOf(bitmap).evict(entity);
+        }
+        usageOf(bitmap).holds++;
+        return true;
+    }
+
+    /**
+     * Hold a bitmap that is not pooled: just decoded, or held already by the caller.
+     */
+    synchronized void hold(Bitmap bitmap) {
+        if (bitmap != null) {
+            usageOf(bitmap).holds++;
+        }
+    }
+
+    /**
+     * The bitmap is handed to code that may keep it, it is never pooled.
+     */
+    synchronized void pin(Bitmap bitmap) {
+        if (bitmap != null) {
+            final Usage usage = usageOf(bitmap);
+            usage.pinned = true;
+            usage.evicted = false;
+            usage.entity = null;
+        }
+    }
+
+    /**
+     * Release a hold, the bitmap is pooled if it was evicted meanwhile and no hold is left.
+     */
+    synchronized void release(Bitmap bitmap) {
+        Usage usage = bitmap == null ? null : usages.get(bitmap);
+        if (usage == null || --usage.holds > 0 || usage.pinned) {
+            return;
+        }
+        usages.remove(bitmap);
+        if (usage.evicted) {
+            pool(bitmap, usage.entity == null ? null : usage.entity.get());
+        }
+    }
+
+    /**
+     * @param entity null if it is not reachable anymore
+     */
+    private void pool(Bitmap bitmap, BitmapEntity entity) {
+        if (put(bitmap) && entity != null) {
+            entity.pooled = true;
+            owners.put(bitmap, entity);
+        }
+    }
+
+    private Usage usageOf(Bitmap bitmap) {
+        Usage usage = usages.get(bitmap);
+        if (usage == null) {
+            usage = new Usage();
+            usages.put(bitmap, usage);
+        }
+        return usage;
+    }
+
+    /**
+     * Take the bitmap out of the pool, not counted as a hit
+     */
+    private void remove(Bitmap bitmap) {
+        final Integer bytes = bitmaps.remove(bitmap);
+        if (bytes == null) {
+            return;
+        }
+        if (REUSE_BY_SIZE) {
+            remove(bySize, bytes, bitmap);
+        } else {
+            remove(byShape, shapeOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap);
+        }
+        owners.remove(bitmap);
+        size -= bytes;
+    }
+
+    /**
+     * Set {@link BitmapFactory.Options#inBitmap} for the decode, the bounds of the options must be
+     * decoded already. Also makes the result mutable, so it can be pooled later.
+     */
+    public void applyTo(BitmapFactory.Options options) {
+        options.inMutable = true;
+        options.inBitmap = null;
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        if (!REUSE_BY_SIZE && (sampleSize > 1
+                || !("image/jpeg".equals(options.outMimeType) || "image/png".equals(options.outMimeType)))) {
+            return;
+        }
+        // round up, the decoded size is not larger
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        final Bitmap.Config config = options.inPreferredConfig == null ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+        options.inBitmap = get(width, height, config);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Hits and misses of {@link #get}, puts, and bitmaps dropped over the budget
+     */
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Drop the eldest bitmaps until the pool fits {@code size}. They are not recycled,
+     * a dropped bitmap is freed once it is not referenced.
+     */
+    public synchronized void trimToSize(int size) {
+        Iterator<Map.Entry<Bitmap, Integer>> iterator = bitmaps.entrySet().iterator();
+        while (this.size > size && iterator.hasNext()) {
+            Map.Entry<Bitmap, Integer> eldest = iterator.next();
+            final Bitmap bitmap = eldest.getKey();
+            final int bytes = eldest.getValue();
+            iterator.remove();
+            if (REUSE_BY_SIZE) {
+                remove(bySize, bytes, bitmap);
+            } else {
+                remove(byShape, shapeOf(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()), bitmap);
+            }
+            owners.remove(bitmap);
+            this.size -= bytes;
+            stats.recordEviction(bytes);
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        final float ratio = MemoryCache.retainRatioOf(level);
+        if (ratio < 1) {
+            trimToSize((int) (size() * ratio));
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private static <K> ArrayDeque<Bitmap> groupOf(Map<K, ArrayDeque<Bitmap>> groups, K key) {
+        ArrayDeque<Bitmap> group = groups.get(key);
+        if (group == null) {
+            group = new ArrayDeque<>();
+            groups.put(key, group);
+        }
+        return group;
+    }
+
+    /**
+     * The latest put one, the eldest ones go first when trimmed
+     */
+    private static <K> Bitmap poll(Map<K, ArrayDeque<Bitmap>> groups, K key) {
+        ArrayDeque<Bitmap> group = groups.get(key);
+        if (group == null) {
+            return null;
+        }
+        Bitmap bitmap = group.pollLast();
+        if (group.isEmpty()) {
+            groups.remove(key);
+        }
+        return bitmap;
+    }
+
+    private static <K> void remove(Map<K, ArrayDeque<Bitmap>> groups, K key, Bitmap bitmap) {
+        ArrayDeque<Bitmap> group = groups.get(key);
+        if (group != null && group.remove(bitmap) && group.isEmpty()) {
+            groups.remove(key);
+        }
+    }
+
+    private static String shapeOf(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+    static int byteCountOf(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static final class Usage {
+        int holds;
+        // never pooled
+        boolean pinned;
+        // left the memory cache while held
+        boolean evicted;
+        // weak, it references the bitmap, the key of its usage
+        WeakReference<BitmapEntity> entity;
+
+        void evict(BitmapEntity entity) {
+            this.evicted = true;
+            this.entity = new WeakReference<>(entity);
+        }
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+}
@@ -61,6 +61,15 @@ public abstract class BitmapReceiver {
         }
     }
 
+    /**
+     * A task whose receivers are all dead is dropped before loading.
+     *
+     * @return false if the result can not be shown anymore
+     */
+    public boolean isAlive() {
+        return true;
+    }
+
     /**
      * Copyright (C), 2015 <br>
      * <br>
@@ -80,6 +89,10 @@ public abstract class BitmapReceiver {
         private int maxHeight;
 
         private Bitmap.Config config;
+        /**
+         * Load order only, not a part of equals
+         */
+        private int priority;
 
         protected Options(OptionsBuilder builder) {
             this.maxWidth = builder.maxWidth;
@@ -87,6 +100,7 @@ public abstract class BitmapReceiver {
             this.fixedWidth = builder.fixedWidth;
             this.fixedHeight = builder.fixedHeight;
             this.config = builder.config;
+            this.priority = builder.priority;
         }
 
         @Deprecated
@@ -111,6 +125,10 @@ public abstract class BitmapReceiver {
             return config;
         }
 
+        public int getPriority() {
+            return priority;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) {
@@ -157,6 +175,7 @@ public abstract class BitmapReceiver {
         private int maxHeight;
 
         private Bitmap.Config config;
+        private int priority;
 
         public OptionsBuilder() {
             this.fixedWidth = -1;
@@ -164,6 +183,7 @@ public abstract class BitmapReceiver {
             this.maxWidth = -1;
             this.maxHeight = -1;
             this.config = Bitmap.Config.RGB_565;
+            this.priority = 0;
         }
 
         public OptionsBuilder setFixed(int fixedWidth, int fixedHeight) {
@@ -183,10 +203,19 @@ public abstract class BitmapReceiver {
             return this;
         }
 
+        /**
+         * Higher loads first, the latest request first among the same priority. Default 0
+         */
+        public OptionsBuilder setPriority(int priority) {
+            this.priority = priority;
+            return this;
+        }
+
         public OptionsBuilder copy(Options options) {
             setFixed(options.fixedWidth, options.fixedHeight);
             setMax(options.maxWidth, options.maxHeight);
             setConfig(options.config);
+            setPriority(options.priority);
             return this;
         }
 
@@ -8,33 +8,38 @@ import android.os.Looper;
 import android.text.TextUtils;
 import android.view.View;
 
+import org.pinwheel.agility.cache.AsyncDiskCache;
+import org.pinwheel.agility.cache.CacheStats;
 import org.pinwheel.agility.cache.DiskCache;
 import org.pinwheel.agility.cache.MemoryCache;
 import org.pinwheel.agility.cache.ObjectEntity;
+import org.pinwheel.agility.cache.WarmUpManifest;
 import org.pinwheel.agility.net.HttpClientAgent;
 import org.pinwheel.agility.net.HttpConnectionAgent;
 import org.pinwheel.agility.net.OkHttp2Agent;
 import org.pinwheel.agility.net.Request;
 import org.pinwheel.agility.net.parser.DataParserAdapter;
 import org.pinwheel.agility.util.IOUtils;
+import org.pinwheel.agility.util.KeyDigest;
 import org.pinwheel.agility.util.callback.Action1;
+import org.pinwheel.agility.util.callback.Function0;
+import org.pinwheel.agility.util.callback.Function1;
+import org.pinwheel.agility.util.callback.Function2;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.io.Serializable;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Copyright (C), 2015 <br>
@@ -52,16 +57,34 @@ public class ImageLoader {
     /**
      * Network task map
      */
-    private final Map<String, AsyncLoaderTask> taskMap;
+    private final ConcurrentHashMap<String, AsyncLoaderTask> taskMap;
+    /**
+     * Task of each waiting receiver, a rebound receiver leaves its last task at once
+     */
+    private final ConcurrentHashMap<BitmapReceiver, AsyncLoaderTask> receiverTasks;
     /**
      * Thread cache pool
      */
-    private ExecutorService executor;
+    private PriorityExecutor executor;
     /**
      * Memory and disk cache loader
      */
     private MemoryCache memoryCache;
     private DiskCache diskCache;
+    /**
+     * Optional, bitmaps evicted from memory cache reused by decodes
+     */
+    private BitmapPool bitmapPool;
+    /**
+     * Bitmap each view shows, held in the pool until the view shows another one
+     */
+    private final WeakHashMap<View, Bitmap> displayedBitmaps = new WeakHashMap<>();
+    /**
+     * Optional, hot images decoded into memory at launch
+     */
+    private volatile WarmUpManifest warmUpManifest;
+    private final Context appContext;
+    private final CacheStats stats = new CacheStats("ImageLoader");
     /**
      * Network engine
      */
@@ -100,20 +123,44 @@ public class ImageLoader {
         // init thread pool
         int parallelSize = options.getParallelSize();
         if (parallelSize <= 0) {
-            this.executor = Executors.newCachedThreadPool();
-        } else {
-            this.executor = Executors.newFixedThreadPool(parallelSize);
+            // tasks are ordered in queue, so the pool is bounded
+            parallelSize = Math.max(2, Runtime.getRuntime().availableProcessors());
         }
+        this.executor = new PriorityExecutor(parallelSize, "ImageLoader");
 
         // init task map. ConcurrentHashMap (thread safety); 16 default size
         this.taskMap = new ConcurrentHashMap<>(16);
+        this.receiverTasks = new ConcurrentHashMap<>(16);
 
         // init disk cache
         File diskCachePath = options.getDiskCachePath();
-        diskCachePath = (null == diskCachePath) ? getDefaultDiskCacheDir(context) : diskCachePath;
-        this.diskCache = new DiskCache(diskCachePath, 0, options.getDiskCacheSize());
+        diskCachePath = (null == diskCachePath) ? getDefaultDiskCacheDir(context, options.getDiskCacheType()) : diskCachePath;
+        if (options.isAsyncDiskCacheInit()) {
+            this.diskCache = new AsyncDiskCache(options.getDiskCacheType(), diskCachePath, 0, options.getDiskCacheSize(), false);
+        } else {
+            this.diskCache = DiskCache.open(options.getDiskCacheType(), diskCachePath, 0, options.getDiskCacheSize(), false);
+        }
+        this.diskCache.setBloomFilterEnabled(true);
         // init memory cache
-        this.memoryCache = new MemoryCache(options.getMemoryCacheSize());
+        this.memoryCache = new MemoryCache(options.getMemoryCacheSize(), options.getMemoryCachePolicy());
+        // trim memory cache on memory pressure, large bitmaps first
+        this.appContext = context.getApplicationContext();
+        this.appContext.registerComponentCallbacks(memoryCache);
+        if (options.getBitmapPoolSize() > 0) {
+            final BitmapPool pool = new BitmapPool(options.getBitmapPoolSize());
+            this.memoryCache.setOnEvictedListener(new MemoryCache.OnEvictedListener() {
+                @Override
+                public void onEvicted(String key, ObjectEntity value) {
+                    if (value instanceof BitmapEntity) {
+                        // pooled once no view shows it
+                        pool.recycle((BitmapEntity) value);
+                    }
+                }
+            });
+            // bitmaps trimmed from memory cache are not pooled, they may still be shown
+            this.appContext.registerComponentCallbacks(pool);
+            this.bitmapPool = pool;
+        }
 
         // init network engine, auto select
         if (HttpClientAgent.isImportOkHttp2()) {
@@ -123,6 +170,32 @@ public class ImageLoader {
         }
 
         this.loaderOptions = options;
+
+        // warm up memory cache with the hottest images of the last sessions
+        if (options.getWarmUpKeys() > 0) {
+            this.warmUpManifest = new WarmUpManifest(
+                    new File(diskCachePath.getParentFile(), diskCachePath.getName() + ".warmup"), options.getWarmUpKeys());
+            this.appContext.registerComponentCallbacks(warmUpManifest);
+            final WarmUpManifest manifest = this.warmUpManifest;
+            final long budget = options.getWarmUpBudget();
+            final Action1<DiskCache> prefetch = new Action1<DiskCache>() {
+                @Override
+                public void call(DiskCache cache) {
+                    manifest.prefetch(new Function1<Long, String>() {
+                        @Override
+                        public Long call(String warmUpKey) {
+                            return warmUp(warmUpKey);
+                        }
+                    }, budget);
+                }
+            };
+            // scheduled once the disk is open, a maintenance job must not wait for it
+            if (diskCache instanceof AsyncDiskCache) {
+                ((AsyncDiskCache) diskCache).addOnReadyListener(prefetch);
+            } else {
+                prefetch.call(diskCache);
+            }
+        }
     }
 
     public void setDefaultOptions(ViewReceiver.Options Options) {
@@ -158,6 +231,9 @@ public class ImageLoader {
             }
             // create final options
             ViewReceiver.Options options = optionsBuilder.create();
+            if (options.getDefaultRes() > 0) {
+                onDisplayed(view, null);
+            }
             receiver.dispatch(options.getDefaultRes());
             getBitmap(receiver, uri, options);
         } else {
@@ -184,30 +260,58 @@ public class ImageLoader {
         receiver.setOptions(options);
 
         if (TextUtils.isEmpty(uri)) {
-            receiver.dispatch(null);
+            dispatch(receiver, null);
             return;
         }
         // clear receiver
         clearReceiverInTaskMap(receiver);
         // loading memory cache first
-        final String memoryKey = getMemoryKey(getDiskKey(uri), options);
+        final String diskKey = getDiskKey(uri);
+        final String memoryKey = getMemoryKey(diskKey, options);
+        final WarmUpManifest manifest = this.warmUpManifest;
+        if (manifest != null) {
+            manifest.record(getWarmUpKey(diskKey, options));
+        }
         ObjectEntity cacheEntity = memoryCache.getCache(memoryKey);
         if (cacheEntity != null && cacheEntity instanceof BitmapEntity) {
-            receiver.dispatch(((BitmapEntity) cacheEntity).get());
-            return;
+            final BitmapEntity bitmapEntity = (BitmapEntity) cacheEntity;
+            final BitmapPool pool = this.bitmapPool;
+            if (pool == null) {
+                receiver.dispatch(bitmapEntity.get());
+                return;
+            }
+            // evicted and reused by a decode just now if not held, load it again
+            if (pool.hold(bitmapEntity)) {
+                dispatch(receiver, bitmapEntity.get());
+                pool.release(bitmapEntity.get());
+                return;
+            }
         }
 
         // async load disk cache and network bitmap
-        AsyncLoaderTask loaderTask = new AsyncLoaderTask(uri);
-        // check task is already in queue, if not put it
-        if (!checkAndPutTask(loaderTask)) {
-            // add this receiver to task
+        final int priority = options == null ? 0 : options.getPriority();
+        while (true) {
+            AsyncLoaderTask task = taskMap.get(diskKey);
+            if (task != null) {
+                // put receiver to task only, no need start new task
+                receiverTasks.put(receiver, task);
+                if (task.addReceiver(receiver)) {
+                    // requested again, move it to the front if still queued
+                    executor.requeue(task, Math.max(priority, task.getPriority()));
+                    return;
+                }
+                // delivered or cancelled just now
+            }
+            AsyncLoaderTask loaderTask = new AsyncLoaderTask(uri, diskKey);
             loaderTask.addReceiver(receiver);
-            // start new task
-            executor.execute(loaderTask);
-        } else {
-            // put receiver to task only, no need start new task
-            addReceiverToTask(loaderTask.diskKey, receiver);
+            receiverTasks.put(receiver, loaderTask);
+            final boolean put = (task == null) ? taskMap.putIfAbsent(diskKey, loaderTask) == null
+                    : taskMap.replace(diskKey, task, loaderTask);
+            if (put) {
+                // start new task
+                executor.execute(loaderTask, priority);
+                return;
+            }
         }
     }
 
@@ -232,7 +336,77 @@ public class ImageLoader {
     }
 
     /**
-     * Load bitmap to memory and return it
+     * @return null if not enabled, see {@link ImageLoaderOptions.Builder#bitmapPoolSize(int)}
+     */
+    public final BitmapPool getBitmapPool() {
+        return this.bitmapPool;
+    }
+
+    /**
+     * Network fetch and bitmap decode latency. See also the stats of each tier.
+     */
+    public final CacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Publish the stats of this loader and its memory and disk tier to their listeners.
+     */
+    public void publishStats() {
+        stats.publish();
+        final MemoryCache memoryCache = this.memoryCache;
+        if (memoryCache != null) {
+            memoryCache.getStats().publish();
+        }
+        final BitmapPool bitmapPool = this.bitmapPool;
+        if (bitmapPool != null) {
+            bitmapPool.getStats().publish();
+        }
+        final DiskCache diskCache = this.diskCache;
+        if (diskCache != null) {
+            diskCache.getStats().publish();
+        }
+    }
+
+    /**
+     * Dispatch to the receiver, the bitmap must be held if pooling. A view holds the bitmap
+     * it shows, other receivers may keep it, so it is never pooled.
+     */
+    private void dispatch(BitmapReceiver receiver, Bitmap bitmap) {
+        final BitmapPool pool = this.bitmapPool;
+        if (pool != null) {
+            final View view = receiver instanceof ViewReceiver ? ((ViewReceiver) receiver).getView() : null;
+            if (view != null) {
+                onDisplayed(view, bitmap);
+            } else if (!(receiver instanceof ViewReceiver)) {
+                pool.pin(bitmap);
+            }
+        }
+        receiver.dispatch(bitmap);
+    }
+
+    /**
+     * The view shows another bitmap, or a resource if null
+     */
+    private void onDisplayed(View view, Bitmap bitmap) {
+        final BitmapPool pool = this.bitmapPool;
+        if (pool == null) {
+            return;
+        }
+        final Bitmap last;
+        synchronized (displayedBitmaps) {
+            last = bitmap == null ? displayedBitmaps.remove(view) : displayedBitmaps.put(view, bitmap);
+        }
+        if (last == bitmap) {
+            return;
+        }
+        pool.hold(bitmap);
+        pool.release(last);
+    }
+
+    /**
+     * Load bitmap to memory and return it. With a bitmap pool the bitmap is held,
+     * release it by {@link BitmapPool} once dispatched.
      *
      * @param memoryKey memory key
      * @param bytes     data of bitmap
@@ -243,73 +417,178 @@ public class ImageLoader {
         if (TextUtils.isEmpty(memoryKey) || bytes == null || bytes.length == 0) {
             return null;
         }
-        BitmapEntity bitmapEntity;
-        if (options == null) {
-            bitmapEntity = new BitmapEntity();
-            bitmapEntity.decodeFrom(bytes);
-        } else {
-            bitmapEntity = new BitmapEntity(options.getConfig());
-            bitmapEntity.decodeFrom(bytes, options);
+        final long begin = System.nanoTime();
+        BitmapEntity bitmapEntity = newBitmapEntity(options);
+        bitmapEntity.decodeFrom(bytes, options);
+        return putToMemory(memoryKey, bitmapEntity, begin);
+    }
+
+    /**
+     * Load bitmap to memory from a local file, decoded by its descriptor without reading it into an array
+     */
+    protected Bitmap getBitmapToMemory(String memoryKey, File file, BitmapReceiver.Options options) {
+        if (TextUtils.isEmpty(memoryKey) || file == null) {
+            return null;
+        }
+        final long begin = System.nanoTime();
+        BitmapEntity bitmapEntity = newBitmapEntity(options);
+        bitmapEntity.decodeFrom(file, options);
+        return putToMemory(memoryKey, bitmapEntity, begin);
+    }
+
+    /**
+     * Load bitmap to memory streaming from disk cache, without reading it into an array
+     */
+    protected Bitmap getBitmapToMemory(String memoryKey, Function0<InputStream> opener, BitmapReceiver.Options options) {
+        if (TextUtils.isEmpty(memoryKey) || opener == null) {
+            return null;
+        }
+        final long begin = System.nanoTime();
+        BitmapEntity bitmapEntity = newBitmapEntity(options);
+        bitmapEntity.decodeFrom(opener, options);
+        return putToMemory(memoryKey, bitmapEntity, begin);
+    }
+
+    private BitmapEntity newBitmapEntity(BitmapReceiver.Options options) {
+        return new BitmapEntity(options == null ? Bitmap.Config.ARGB_8888 : options.getConfig(), bitmapPool);
+    }
+
+    private Bitmap putToMemory(String memoryKey, BitmapEntity bitmapEntity, long begin) {
+        stats.recordDecode(System.nanoTime() - begin);
+        if (bitmapEntity.get() == null) {
+            return null;
+        }
+        final BitmapPool pool = this.bitmapPool;
+        if (pool != null) {
+            // not pooled until delivered, even if rejected or evicted at once
+            pool.hold(bitmapEntity.get());
         }
         memoryCache.setCache(memoryKey, bitmapEntity);
         return bitmapEntity.get();
     }
 
+    /**
+     * Opens the disk cache entry, opens again are not counted as accesses
+     */
+    private Function0<InputStream> diskSource(final DiskCache diskCache, final String diskKey) {
+        return new Function0<InputStream>() {
+            private boolean opened;
+
+            @Override
+            public InputStream call() {
+                if (opened) {
+                    return diskCache.peek(diskKey);
+                }
+                opened = true;
+                return diskCache.getCache(diskKey);
+            }
+        };
+    }
+
     protected final String getMemoryKey(String diskKey, BitmapReceiver.Options options) {
         return options == null ? diskKey : (diskKey + "#" + options.hashCode());
     }
 
-    protected final String getDiskKey(String url) {
-        return md5(url);
+    /**
+     * Disk key and the decode options, enough to decode the same bitmap at the next launch
+     */
+    private static String getWarmUpKey(String diskKey, BitmapReceiver.Options options) {
+        if (options == null) {
+            return diskKey;
+        }
+        return diskKey + ":" + options.getMaxWidth() + ":" + options.getMaxHeight()
+                + ":" + options.getFixedWidth() + ":" + options.getFixedHeight()
+                + ":" + (options.getConfig() == null ? "" : options.getConfig().name());
     }
 
     /**
-     * Check a task is already in task ,if not put it
+     * Decode a recorded image from disk into memory, called by the prefetch job once the disk cache is open.
      *
-     * @param task task
-     * @return is put
+     * @return bytes of the bitmap, 0 if not cached on disk or in memory already
      */
-    protected boolean checkAndPutTask(AsyncLoaderTask task) {
-        final boolean is = taskMap.containsKey(task.diskKey);
-        if (!is) {
-            taskMap.put(task.diskKey, task);
+    private long warmUp(String warmUpKey) {
+        final MemoryCache memoryCache = this.memoryCache;
+        final DiskCache diskCache = this.diskCache;
+        if (memoryCache == null || diskCache == null) {
+            return 0;
+        }
+        final String[] parts = warmUpKey.split(":", -1);
+        final String diskKey = parts[0];
+        BitmapReceiver.Options options = null;
+        if (parts.length == 6) {
+            try {
+                options = new BitmapReceiver.OptionsBuilder()
+                        .setMax(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]))
+                        .setFixed(Integer.parseInt(parts[3]), Integer.parseInt(parts[4]))
+                        .setConfig(parts[5].isEmpty() ? null : Bitmap.Config.valueOf(parts[5]))
+                        .create();
+            } catch (IllegalArgumentException e) {
+                return 0;
+            }
+        }
+        final String memoryKey = getMemoryKey(diskKey, options);
+        if (memoryCache.contains(memoryKey)) {
+            return 0;
+        }
+        if (!diskCache.contains(diskKey)) {
+            return 0;
+        }
+        Bitmap bitmap = getBitmapToMemory(memoryKey, diskSource(diskCache, diskKey), options);
+        if (bitmap == null) {
+            return 0;
         }
-        return is;
+        final BitmapPool pool = this.bitmapPool;
+        if (pool != null) {
+            pool.release(bitmap);
+        }
+        return bitmap.getByteCount();
+    }
+
+    protected final String getDiskKey(String url) {
+        return KeyDigest.of(url, loaderOptions.getKeyMode());
     }
 
     /**
-     * Remove task
-     *
-     * @param key key
+     * Queued loads wait until {@link #resume()}, e.g. during a fling. Memory cache hits are
+     * still dispatched at once, and loads already started complete.
      */
-    protected void removeTask(String key) {
-        AsyncLoaderTask task = taskMap.remove(key);
-        if (taskMap.size() == 0) {
-            System.gc();
+    public void pause() {
+        final PriorityExecutor executor = this.executor;
+        if (executor != null) {
+            executor.pause();
         }
     }
 
+    public void resume() {
+        final PriorityExecutor executor = this.executor;
+        if (executor != null) {
+            executor.resume();
+        }
+    }
+
+    public boolean isPaused() {
+        final PriorityExecutor executor = this.executor;
+        return executor != null && executor.isPaused();
+    }
+
     /**
-     * Add receiver to task
+     * Remove task, if it is still the task of its key. Also called on the main thread when a
+     * rebound receiver cancels its task, so it must stay cheap.
      *
-     * @param key      key
-     * @param receiver receiver
+     * @param task task
      */
-    protected void addReceiverToTask(String key, BitmapReceiver receiver) {
-        AsyncLoaderTask task = taskMap.get(key);
-        if (task != null) {
-            task.addReceiver(receiver);
-        }
+    protected void removeTask(AsyncLoaderTask task) {
+        taskMap.remove(task.diskKey, task);
     }
 
     /**
-     * Remove receiver in task
+     * Remove receiver in task, the task is cancelled if it was the last one
      *
      * @param receiver receiver
      */
     protected void clearReceiverInTaskMap(BitmapReceiver receiver) {
-        Collection<AsyncLoaderTask> tasks = taskMap.values();
-        for (AsyncLoaderTask task : tasks) {
+        AsyncLoaderTask task = receiverTasks.remove(receiver);
+        if (task != null) {
             task.removeReceiver(receiver);
         }
     }
@@ -323,15 +602,29 @@ public class ImageLoader {
             task.release();
         }
         taskMap.clear();
-
+        receiverTasks.clear();
+
+        final WarmUpManifest manifest = this.warmUpManifest;
+        if (manifest != null) {
+            appContext.unregisterComponentCallbacks(manifest);
+            manifest.save();
+            manifest.release();
+            warmUpManifest = null;
+        }
         if (executor != null) {
             executor.shutdown();
             executor = null;
         }
         if (memoryCache != null) {
+            appContext.unregisterComponentCallbacks(memoryCache);
             memoryCache.release();
             memoryCache = null;
         }
+        if (bitmapPool != null) {
+            appContext.unregisterComponentCallbacks(bitmapPool);
+            bitmapPool.clear();
+            bitmapPool = null;
+        }
         if (diskCache != null) {
             diskCache.release();
             diskCache = null;
@@ -342,14 +635,18 @@ public class ImageLoader {
     /**
      * Load bitmap task.
      */
-    private class AsyncLoaderTask implements Runnable {
+    private class AsyncLoaderTask extends PriorityExecutor.Task {
 
         private final Set<BitmapReceiver> receivers;
         private final String diskKey;
         private final String uri;
+        /**
+         * Delivered or cancelled, guarded by receivers; no receiver joins it anymore
+         */
+        private boolean closed;
 
-        public AsyncLoaderTask(String uri) {
-            this.diskKey = getDiskKey(uri);
+        public AsyncLoaderTask(String uri, String diskKey) {
+            this.diskKey = diskKey;
             this.receivers = new HashSet<>(5);
             this.uri = uri;
         }
@@ -359,6 +656,7 @@ public class ImageLoader {
          */
         public void release() {
             synchronized (receivers) {
+                closed = true;
                 receivers.clear();
             }
         }
@@ -367,37 +665,131 @@ public class ImageLoader {
          * Add receiver to this task
          *
          * @param receiver receiver
+         * @return false if the task is closed, start a new one
          */
-        public void addReceiver(BitmapReceiver receiver) {
+        public boolean addReceiver(BitmapReceiver receiver) {
             synchronized (receivers) {
+                if (closed) {
+                    return false;
+                }
                 receivers.add(receiver);
+                return true;
             }
         }
 
         /**
-         * Remove receiver from this task
+         * Remove receiver from this task, cancel the task when no receiver is left.
+         * A cancelled task does not start; if it is downloading already, the data is still
+         * written to disk cache but not decoded.
          *
          * @param targetReceiver receiver
          */
         public void removeReceiver(BitmapReceiver targetReceiver) {
             synchronized (receivers) {
-                receivers.remove(targetReceiver);
+                if (receivers.remove(targetReceiver) && receivers.isEmpty() && !closed) {
+                    closed = true;
+                    removeTask(this);
+                }
             }
         }
 
-        public void postToReceiver(final BitmapReceiver receiver, final Bitmap bitmap) {
-            if (receiver == null) {
-                return;
+        /**
+         * Drop the dead receivers, close the task if none is left.
+         *
+         * @return false if closed
+         */
+        private boolean pruneReceivers() {
+            synchronized (receivers) {
+                if (closed) {
+                    return false;
+                }
+                Iterator<BitmapReceiver> iterator = receivers.iterator();
+                while (iterator.hasNext()) {
+                    BitmapReceiver receiver = iterator.next();
+                    if (!receiver.isAlive()) {
+                        receiverTasks.remove(receiver, this);
+                        iterator.remove();
+                    }
+                }
+                if (receivers.isEmpty()) {
+                    closed = true;
+                    removeTask(this);
+                    return false;
+                }
+                return true;
             }
-            if (Looper.myLooper() != Looper.getMainLooper()) {
-                mainThreadHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        receiver.dispatch(bitmap);
+        }
+
+        /**
+         * Close the task, then decode each variant once, outside the lock, and post it to all
+         * receivers of that variant. A variant whose receivers are all gone is not decoded.
+         *
+         * @param decoder memory key and options to bitmap, null to post null
+         */
+        private void deliver(Function2<Bitmap, String, BitmapReceiver.Options> decoder) {
+            final List<BitmapReceiver> waiting;
+            synchronized (receivers) {
+                closed = true;
+                waiting = new ArrayList<>(receivers);
+                receivers.clear();
+                removeTask(this);
+            }
+            // group by memory key, equal options share one decode
+            Map<String, List<BitmapReceiver>> variants = new LinkedHashMap<>();
+            for (BitmapReceiver receiver : waiting) {
+                final String memoryKey = getMemoryKey(diskKey, receiver.getOptions());
+                List<BitmapReceiver> variant = variants.get(memoryKey);
+                if (variant == null) {
+                    variant = new ArrayList<>(2);
+                    variants.put(memoryKey, variant);
+                }
+                variant.add(receiver);
+            }
+            for (Map.Entry<String, List<BitmapReceiver>> variant : variants.entrySet()) {
+                Bitmap bitmap = null;
+                if (decoder != null && isWanted(variant.getValue())) {
+                    bitmap = decoder.call(variant.getKey(), variant.getValue().get(0).getOptions());
+                }
+                // notify update
+                postToReceivers(variant.getValue(), bitmap);
+            }
+        }
+
+        /**
+         * @return true if any receiver is alive and still waits for this task
+         */
+        private boolean isWanted(List<BitmapReceiver> receivers) {
+            for (BitmapReceiver receiver : receivers) {
+                if (receiver.isAlive() && receiverTasks.get(receiver) == this) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Dispatch only to the receivers still waiting for this task, they may be rebound meanwhile.
+         * The hold of the decode is released after.
+         */
+        public void postToReceivers(final List<BitmapReceiver> receivers, final Bitmap bitmap) {
+            final Runnable dispatch = new Runnable() {
+                @Override
+                public void run() {
+                    for (BitmapReceiver receiver : receivers) {
+                        if (receiverTasks.remove(receiver, AsyncLoaderTask.this)) {
+                            dispatch(receiver, bitmap);
+                        }
                     }
-                });
+                    final BitmapPool pool = bitmapPool;
+                    if (pool != null) {
+                        pool.release(bitmap);
+                    }
+                }
+            };
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                mainThreadHandler.post(dispatch);
             } else {
-                receiver.dispatch(bitmap);
+                dispatch.run();
             }
         }
 
@@ -405,24 +797,20 @@ public class ImageLoader {
          * Start download and show bitmap
          */
         private void getBitmapFromNetwork() {
+            final long begin = System.nanoTime();
             Request request = new Request.Builder().url(uri).timeOut(loaderOptions.getNetworkTimeOut(), 0).create();
             request.setParserAndAdapter(new DataParserAdapter() {
                 @Override
                 public void parse(InputStream inStream) throws Exception {
-                    byte[] bytes = IOUtils.stream2Bytes(inStream);
+                    final byte[] bytes = IOUtils.stream2Bytes(inStream);
+                    stats.recordLoadSuccess(System.nanoTime() - begin);
                     diskCache.setCache(diskKey, new ByteArrayInputStream(bytes));
-                    synchronized (receivers) {
-                        Iterator<BitmapReceiver> iterator = receivers.iterator();
-                        while (iterator.hasNext()) {
-                            BitmapReceiver receiver = iterator.next();
-                            BitmapReceiver.Options options = receiver.getOptions();
-                            Bitmap bitmap = getBitmapToMemory(getMemoryKey(diskKey, options), bytes, options);
-                            // notify update
-                            postToReceiver(receiver, bitmap);
-                            iterator.remove();
+                    deliver(new Function2<Bitmap, String, BitmapReceiver.Options>() {
+                        @Override
+                        public Bitmap call(String memoryKey, BitmapReceiver.Options options) {
+                            return getBitmapToMemory(memoryKey, bytes, options);
                         }
-                        removeTask(diskKey);
-                    }
+                    });
                 }
             }, new HttpClientAgent.RequestAdapter() {
                 @Override
@@ -432,41 +820,22 @@ public class ImageLoader {
 
                 @Override
                 public void onDeliverError(Exception e) {
-                    synchronized (receivers) {
-                        Iterator<BitmapReceiver> iterator = receivers.iterator();
-                        while (iterator.hasNext()) {
-                            BitmapReceiver receiver = iterator.next();
-                            // notify update
-                            postToReceiver(receiver, null);
-                            iterator.remove();
-                        }
-                        removeTask(diskKey);
-                    }
+                    stats.recordLoadFailure(System.nanoTime() - begin);
+                    deliver(null);
                 }
             });
-            httpEngine.enqueue(request);
+            // on this worker, so priority, pause and the dead receiver drop also hold the download
+            httpEngine.executeBlocking(request);
         }
 
         private void getBitmapFromNativePath() {
-            byte[] bytes = null;
-            try {
-                FileInputStream fileInStream = new FileInputStream(new File(uri));
-                bytes = IOUtils.stream2Bytes(fileInStream);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } finally {
-                synchronized (receivers) {
-                    Iterator<BitmapReceiver> iterator = receivers.iterator();
-                    while (iterator.hasNext()) {
-                        BitmapReceiver receiver = iterator.next();
-                        BitmapReceiver.Options options = receiver.getOptions();
-                        Bitmap bitmap = getBitmapToMemory(getMemoryKey(diskKey, options), bytes, options);
-                        postToReceiver(receiver, bitmap);
-                        iterator.remove();
-                    }
-                    removeTask(diskKey);
+            final File file = new File(uri);
+            deliver(new Function2<Bitmap, String, BitmapReceiver.Options>() {
+                @Override
+                public Bitmap call(String memoryKey, BitmapReceiver.Options options) {
+                    return getBitmapToMemory(memoryKey, file, options);
                 }
-            }
+            });
         }
 
         private boolean isNativeUri() {
@@ -475,29 +844,28 @@ public class ImageLoader {
 
         @Override
         public void run() {
+            if (!pruneReceivers()) {
+                // cancelled while queued, or no one to show it
+                return;
+            }
             if (isNativeUri()) {
                 // this is a native path
                 getBitmapFromNativePath();
                 return;
             }
 
-            if (!diskCache.isContains(diskKey)) {
+            if (!diskCache.contains(diskKey)) {
                 // have no disk cache, download bitmap from network
                 getBitmapFromNetwork();
             } else {
-                // just load disk cache
-                byte[] bytes = IOUtils.stream2Bytes(diskCache.getCache(diskKey));
-                synchronized (receivers) {
-                    Iterator<BitmapReceiver> iterator = receivers.iterator();
-                    while (iterator.hasNext()) {
-                        BitmapReceiver receiver = iterator.next();
-                        BitmapReceiver.Options options = receiver.getOptions();
-                        Bitmap bitmap = getBitmapToMemory(getMemoryKey(diskKey, options), bytes, options);
-                        postToReceiver(receiver, bitmap);
-                        iterator.remove();
+                // just load disk cache, streamed by each decode
+                final Function0<InputStream> source = diskSource(diskCache, diskKey);
+                deliver(new Function2<Bitmap, String, BitmapReceiver.Options>() {
+                    @Override
+                    public Bitmap call(String memoryKey, BitmapReceiver.Options options) {
+                        return getBitmapToMemory(memoryKey, source, options);
                     }
-                    removeTask(diskKey);
-                }
+                });
             }
         }
     }
@@ -521,6 +889,13 @@ public class ImageLoader {
         private int diskCacheSize;
         private int parallelSize;
         private File diskCachePath;
+        private DiskCache.Type diskCacheType;
+        private boolean asyncDiskCacheInit;
+        private MemoryCache.Policy memoryCachePolicy;
+        private KeyDigest.Mode keyMode;
+        private int warmUpKeys;
+        private int warmUpBudget;
+        private int bitmapPoolSize;
 
         private ImageLoaderOptions(Builder builder) {
             this.parallelSize = builder.parallelSize;
@@ -528,6 +903,13 @@ public class ImageLoader {
             this.diskCacheSize = builder.diskCacheSize;
             this.networkTimeOut = builder.connectTimeOut;
             this.diskCachePath = builder.diskCachePath;
+            this.diskCacheType = builder.diskCacheType;
+            this.asyncDiskCacheInit = builder.asyncDiskCacheInit;
+            this.memoryCachePolicy = builder.memoryCachePolicy;
+            this.keyMode = builder.keyMode;
+            this.warmUpKeys = builder.warmUpKeys;
+            this.warmUpBudget = builder.warmUpBudget;
+            this.bitmapPoolSize = builder.bitmapPoolSize;
         }
 
         public int getNetworkTimeOut() {
@@ -550,6 +932,34 @@ public class ImageLoader {
             return parallelSize;
         }
 
+        public DiskCache.Type getDiskCacheType() {
+            return diskCacheType;
+        }
+
+        public boolean isAsyncDiskCacheInit() {
+            return asyncDiskCacheInit;
+        }
+
+        public MemoryCache.Policy getMemoryCachePolicy() {
+            return memoryCachePolicy;
+        }
+
+        public KeyDigest.Mode getKeyMode() {
+            return keyMode;
+        }
+
+        public int getWarmUpKeys() {
+            return warmUpKeys;
+        }
+
+        public int getWarmUpBudget() {
+            return warmUpBudget;
+        }
+
+        public int getBitmapPoolSize() {
+            return bitmapPoolSize;
+        }
+
         /**
          * Options builder
          */
@@ -560,6 +970,13 @@ public class ImageLoader {
             private int diskCacheSize;
             private int parallelSize;
             private File diskCachePath;
+            private DiskCache.Type diskCacheType;
+            private boolean asyncDiskCacheInit;
+            private MemoryCache.Policy memoryCachePolicy;
+            private KeyDigest.Mode keyMode;
+            private int warmUpKeys;
+            private int warmUpBudget;
+            private int bitmapPoolSize;
 
             public Builder() {
                 memoryCacheSize = DEFAULT_MAX_MEMORY_CACHE;
@@ -567,6 +984,9 @@ public class ImageLoader {
                 parallelSize = 4;
                 connectTimeOut = 30;// 30s
                 diskCachePath = null;
+                diskCacheType = DiskCache.Type.LRU_FILE;
+                memoryCachePolicy = MemoryCache.Policy.LRU;
+                keyMode = KeyDigest.Mode.MD5;
             }
 
             public Builder connectTimeOut(int timeOut) {
@@ -579,6 +999,47 @@ public class ImageLoader {
                 return this;
             }
 
+            /**
+             * {@link MemoryCache.Policy#TINY_LFU} keeps reused icons and avatars through long feed scrolls.
+             */
+            public Builder memoryCachePolicy(MemoryCache.Policy policy) {
+                this.memoryCachePolicy = (null == policy) ? MemoryCache.Policy.LRU : policy;
+                return this;
+            }
+
+            /**
+             * {@link KeyDigest.Mode#HASH_128} derives keys faster, images cached with the other mode are not found.
+             */
+            public Builder keyMode(KeyDigest.Mode mode) {
+                this.keyMode = (null == mode) ? KeyDigest.Mode.MD5 : mode;
+                return this;
+            }
+
+            /**
+             * Record the hottest images, at the next launch decode them from disk into memory
+             * in background until {@code budget} bytes of bitmaps are loaded.
+             *
+             * @param maxKeys images kept in the manifest, 0 disables it
+             * @param budget  max bytes, less than the memory cache size
+             */
+            public Builder warmUp(int maxKeys, int budget) {
+                this.warmUpKeys = Math.max(0, maxKeys);
+                this.warmUpBudget = Math.max(0, budget);
+                return this;
+            }
+
+            /**
+             * Bitmaps evicted from memory cache are kept and reused by later decodes, less garbage
+             * while scrolling. A bitmap is pooled only once no view loaded by this loader shows it;
+             * one dispatched to other receivers is never pooled.
+             *
+             * @param size max bytes of the pooled bitmaps, 0 disables it
+             */
+            public Builder bitmapPoolSize(int size) {
+                this.bitmapPoolSize = Math.max(0, size);
+                return this;
+            }
+
             public Builder diskCacheSize(int size) {
                 this.diskCacheSize = Math.max(0, size);
                 return this;
@@ -588,6 +1049,22 @@ public class ImageLoader {
                 this.diskCachePath = diskCachePath;
             }
 
+            /**
+             * {@link DiskCache.Type#SEGMENT} suits many small thumbnails. Each type needs its own path.
+             */
+            public Builder diskCacheType(DiskCache.Type type) {
+                this.diskCacheType = (null == type) ? DiskCache.Type.LRU_FILE : type;
+                return this;
+            }
+
+            /**
+             * Open disk cache in background, images are loaded from network until it is ready.
+             */
+            public Builder asyncDiskCacheInit(boolean async) {
+                this.asyncDiskCacheInit = async;
+                return this;
+            }
+
             public Builder parallelSize(int size) {
                 this.parallelSize = Math.max(0, size);
                 return this;
@@ -599,8 +1076,8 @@ public class ImageLoader {
         }
     }
 
-    private static File getDefaultDiskCacheDir(Context context) {
-        final String fileName = "cache4bitmap";
+    private static File getDefaultDiskCacheDir(Context context, DiskCache.Type type) {
+        final String fileName = type == DiskCache.Type.SEGMENT ? "cache4bitmap_segment" : "cache4bitmap";
         if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState()) || !Environment.isExternalStorageRemovable()) {
             return new File(context.getExternalCacheDir(), fileName);
         } else {
@@ -608,25 +1085,4 @@ public class ImageLoader {
         }
     }
 
-    private static String md5(String data) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(data.getBytes());
-            byte[] digest = mDigest.digest();
-            StringBuilder sb = new StringBuilder();
-            for (byte aDigest : digest) {
-                String hex = Integer.toHexString(0xFF & aDigest);
-                if (hex.length() == 1) {
-                    sb.append('0');
-                }
-                sb.append(hex);
-            }
-            return sb.toString();
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(data.hashCode());
-        }
-        return cacheKey;
-    }
-
 }
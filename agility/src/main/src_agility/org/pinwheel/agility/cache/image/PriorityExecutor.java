@@ -0,0 +1,144 @@
+package org.pinwheel.agility.cache.image;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Fixed pool of low priority threads running the queued {@link Task}s by priority, the latest
+ * submitted first within a priority, so the rows on screen load before those scrolled past.
+ * While paused, queued tasks wait and submitting goes on.
+ *
+ * @author dnwang
+ */
+final class PriorityExecutor extends ThreadPoolExecutor {
+
+    private static final Comparator<Runnable> ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            final Task lhsTask = (Task) lhs;
+            final Task rhsTask = (Task) rhs;
+            if (lhsTask.priority != rhsTask.priority) {
+                return lhsTask.priority > rhsTask.priority ? -1 : 1;
+            }
+            return lhsTask.sequence == rhsTask.sequence ? 0 : (lhsTask.sequence > rhsTask.sequence ? -1 : 1);
+        }
+    };
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final ReentrantLock pauseLock = new ReentrantLock();
+    private final Condition unpaused = pauseLock.newCondition();
+    private boolean paused;
+
+    PriorityExecutor(int threads, final String name) {
+        super(threads, threads, 30L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(16, ORDER), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, name + "-" + count.incrementAndGet());
+            }
+        });
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue the task in front of all queued tasks of the same priority.
+     */
+    void execute(Task task, int priority) {
+        task.priority = priority;
+        task.sequence = sequence.incrementAndGet();
+        execute(task);
+    }
+
+    /**
+     * Move a queued task to the front of its new priority.
+     *
+     * @return false if it is not queued, running or done
+     */
+    boolean requeue(Task task, int priority) {
+        if (!getQueue().remove(task)) {
+            return false;
+        }
+        execute(task, priority);
+        return true;
+    }
+
+    public void pause() {
+        pauseLock.lock();
+        try {
+            paused = true;
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    public void resume() {
+        pauseLock.lock();
+        try {
+            paused = false;
+            unpaused.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    public boolean isPaused() {
+        pauseLock.lock();
+        try {
+            return paused;
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        pauseLock.lock();
+        try {
+            while (paused) {
+                unpaused.await();
+            }
+        } catch (InterruptedException e) {
+            t.interrupt();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        resume();
+        super.shutdown();
+    }
+
+    /**
+     * Only tasks of this type can be executed, the order fields are set when queued.
+     */
+    abstract static class Task implements Runnable {
+        private volatile int priority;
+        private volatile long sequence;
+
+        final int getPriority() {
+            return priority;
+        }
+    }
+
+}
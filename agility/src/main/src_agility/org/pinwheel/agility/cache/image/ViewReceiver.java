@@ -20,10 +20,15 @@ import java.lang.ref.SoftReference;
 public class ViewReceiver extends BitmapReceiver {
 
     private SoftReference<View> reference;
+    /**
+     * Taken once, a cleared reference must not move the receiver in hash tables
+     */
+    private final int viewHash;
 
     public ViewReceiver(View view) {
         super();
         this.reference = new SoftReference<>(view);
+        this.viewHash = view == null ? 0 : view.hashCode();
     }
 
     @Override
@@ -40,7 +45,16 @@ public class ViewReceiver extends BitmapReceiver {
 
     @Override
     public int hashCode() {
-        return reference.get() == null ? 0 : reference.get().hashCode();
+        return viewHash;
+    }
+
+    final View getView() {
+        return reference.get();
+    }
+
+    @Override
+    public boolean isAlive() {
+        return reference.get() != null;
     }
 
     public void dispatch(int res) {
@@ -0,0 +1,219 @@
+package org.pinwheel.agility.cache.lru;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Binary journal of {@link DiskLruCache}: a checkpoint snapshot of all entries and
+ * a tail of operations appended since that snapshot. Both share a generation number,
+ * a tail from an older generation is already contained in the snapshot and is ignored.
+ * <p>
+ * Record: op(1), key length(1), key(ascii), CLEAN only: value lengths(8 * valueCount)
+ *
+ * @author dnwang
+ */
+final class BinaryJournal implements Closeable {
+
+    static final String SNAPSHOT_FILE = "journal.snapshot";
+    static final String SNAPSHOT_FILE_TEMP = "journal.snapshot.tmp";
+    static final String TAIL_FILE = "journal.bin";
+
+    static final byte OP_CLEAN = 1;
+    static final byte OP_DIRTY = 2;
+    static final byte OP_REMOVE = 3;
+    static final byte OP_READ = 4;
+
+    private static final int SNAPSHOT_MAGIC = 0xD15C5AA9;
+    private static final int TAIL_MAGIC = 0xD15C7A11;
+    private static final int VERSION = 1;
+
+    interface Replay {
+        void onRecord(byte op, String key, long[] lengths) throws IOException;
+    }
+
+    /**
+     * Result of {@link #read}
+     */
+    static final class ReadResult {
+        /**
+         * Generation of the snapshot, the next checkpoint must go past it
+         */
+        final long generation;
+        /**
+         * False if the tail is missing, of an older generation or ends with a truncated record,
+         * it should be rewritten before appending
+         */
+        final boolean tailIntact;
+
+        ReadResult(long generation, boolean tailIntact) {
+            this.generation = generation;
+            this.tailIntact = tailIntact;
+        }
+    }
+
+    private final DataOutputStream out;
+
+    private BinaryJournal(DataOutputStream out) {
+        this.out = out;
+    }
+
+    static boolean exists(File directory) {
+        return new File(directory, SNAPSHOT_FILE).exists();
+    }
+
+    static void deleteFiles(File directory) {
+        new File(directory, SNAPSHOT_FILE).delete();
+        new File(directory, SNAPSHOT_FILE_TEMP).delete();
+        new File(directory, TAIL_FILE).delete();
+    }
+
+    /**
+     * Load snapshot then replay the tail.
+     */
+    static ReadResult read(File directory, int appVersion, int valueCount, Replay replay) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(directory, SNAPSHOT_FILE)), 64 * 1024));
+        final long generation;
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unexpected snapshot header");
+            }
+            if (in.readInt() != appVersion || in.readInt() != valueCount) {
+                throw new DiskLruCache.JournalMismatchException("snapshot of another app version or value count");
+            }
+            generation = in.readLong();
+            final int count = in.readInt();
+            byte[] keyBuffer = new byte[256];
+            for (int i = 0; i < count; i++) {
+                final int op = in.read();
+                if (op == -1) {
+                    throw new EOFException("snapshot truncated");
+                }
+                readRecord(in, (byte) op, valueCount, keyBuffer, replay);
+            }
+        } finally {
+            Util.closeQuietly(in);
+        }
+
+        File tailFile = new File(directory, TAIL_FILE);
+        if (!tailFile.exists()) {
+            return new ReadResult(generation, false);
+        }
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(tailFile), 64 * 1024));
+        try {
+            if (in.readInt() != TAIL_MAGIC || in.readLong() != generation) {
+                return new ReadResult(generation, false);// crash during checkpoint, tail already in snapshot
+            }
+            byte[] keyBuffer = new byte[256];
+            while (true) {
+                final int op = in.read();
+                if (op == -1) {
+                    return new ReadResult(generation, true);
+                }
+                readRecord(in, (byte) op, valueCount, keyBuffer, replay);
+            }
+        } catch (EOFException truncated) {
+            return new ReadResult(generation, false);
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    private static void readRecord(DataInputStream in, byte op, int valueCount, byte[] keyBuffer, Replay replay)
+            throws IOException {
+        final int keyLength = in.readUnsignedByte();
+        in.readFully(keyBuffer, 0, keyLength);
+        String key = new String(keyBuffer, 0, keyLength, Util.US_ASCII);
+        long[] lengths = null;
+        if (op == OP_CLEAN) {
+            lengths = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                lengths[i] = in.readLong();
+            }
+        } else if (op != OP_DIRTY && op != OP_REMOVE && op != OP_READ) {
+            throw new IOException("unexpected journal op: " + op);
+        }
+        replay.onRecord(op, key, lengths);
+    }
+
+    /**
+     * Begin a checkpoint, write {@code count} records then {@link #commitSnapshot}.
+     */
+    static DataOutputStream beginSnapshot(File directory, int appVersion, int valueCount, long generation, int count)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, SNAPSHOT_FILE_TEMP)), 64 * 1024));
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(appVersion);
+        out.writeInt(valueCount);
+        out.writeLong(generation);
+        out.writeInt(count);
+        return out;
+    }
+
+    /**
+     * Publish the snapshot and start an empty tail of the same generation.
+     */
+    static BinaryJournal commitSnapshot(File directory, DataOutputStream snapshot, long generation)
+            throws IOException {
+        snapshot.close();
+        File snapshotFile = new File(directory, SNAPSHOT_FILE);
+        // rename replaces the old snapshot atomically, never leave the cache without one
+        if (!new File(directory, SNAPSHOT_FILE_TEMP).renameTo(snapshotFile)) {
+            throw new IOException("can not commit " + snapshotFile);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, TAIL_FILE), false)));
+        out.writeInt(TAIL_MAGIC);
+        out.writeLong(generation);
+        out.flush();
+        return new BinaryJournal(out);
+    }
+
+    /**
+     * Continue appending to the tail after it has been read.
+     */
+    static BinaryJournal openTail(File directory) throws IOException {
+        return new BinaryJournal(new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(directory, TAIL_FILE), true))));
+    }
+
+    static void writeRecord(DataOutputStream out, byte op, String key, long[] lengths) throws IOException {
+        out.writeByte(op);
+        out.writeByte(key.length());
+        // keys are validated as [a-z0-9_-]{1,120}
+        out.writeBytes(key);
+        if (op == OP_CLEAN) {
+            for (long length : lengths) {
+                out.writeLong(length);
+            }
+        }
+    }
+
+    void append(byte op, String key, long[] lengths) throws IOException {
+        writeRecord(out, op, key, lengths);
+    }
+
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -16,30 +16,38 @@
 
 package org.pinwheel.agility.cache.lru;
 
+import org.pinwheel.agility.cache.MaintenanceScheduler;
+
 import java.io.BufferedWriter;
 import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
 /**
  * A cache that uses a bounded amount of space on a filesystem. Each cache
@@ -98,6 +106,12 @@ public final class DiskLruCache implements Closeable {
     private static final String DIRTY = "DIRTY";
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
+    /**
+     * Footer appended to each value file: magic(4), value length(8), crc32 of the value(4).
+     * Files written before footers existed have none and are read unchecked.
+     */
+    static final int FOOTER_MAGIC = 0xD15CF007;
+    static final int FOOTER_SIZE = 16;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -137,6 +151,18 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * Opened with a binary journal, the same records go to "journal.bin" and the
+     * compaction writes a "journal.snapshot" checkpoint instead, see {@link BinaryJournal}.
+     *
+     * A damaged journal does not lose the cache: value files are scanned and every
+     * entry whose files carry a valid footer is kept, see {@link #recoverFromFiles()}.
+     *
+     * The cache lock only guards the in-memory index and is held briefly. Files are opened,
+     * written and renamed outside of it by their owner: a reader opens the clean files and then
+     * checks that the entry was not committed or removed meanwhile, an editor owns the dirty
+     * files of its entry. Journal records are queued under the lock, in the order of the index
+     * changes, and written without it by the {@link JournalAppender}.
      */
 
     private final File directory;
@@ -146,42 +172,59 @@ public final class DiskLruCache implements Closeable {
     private final int appVersion;
     private long maxSize;
     private final int valueCount;
-    private long size = 0;
+    private volatile long size = 0;
     private Writer journalWriter;
+    private final boolean useBinaryJournal;
+    private BinaryJournal binaryJournal;
+    private long journalGeneration;
+    private int tailOpCount;
+    private EvictionListener evictionListener;
     private final LinkedHashMap<String, Entry> lruEntries =
             new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /**
+     * Keys of entries created by an edit in progress, not readable yet. Lets {@link #contains}
+     * answer without {@code lruEntries.get}, which would promote the entry.
+     */
+    private final HashSet<String> creatingKeys = new HashSet<String>();
     private int redundantOpCount;
+    private boolean journalAutoFlush = true;
+    private final JournalAppender journal = new JournalAppender();
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
+     * Entries read from the journal have 0, so the first commit must change it.
      */
-    private long nextSequenceNumber = 0;
+    private long nextSequenceNumber = 1;
 
     /**
-     * This cache uses a single background thread to evict entries.
+     * Eviction and journal rebuild run on the shared maintenance threads, coalesced per cache.
      */
-    final ThreadPoolExecutor executorService =
-            new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-    private final Callable<Void> cleanupCallable = new Callable<Void>() {
-        public Void call() throws Exception {
-            synchronized (DiskLruCache.this) {
-                if (journalWriter == null) {
-                    return null; // Closed.
-                }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
+    private final MaintenanceScheduler scheduler = MaintenanceScheduler.getDefault();
+    private final Runnable cleanupJob = new Runnable() {
+        public void run() {
+            try {
+                synchronized (DiskLruCache.this) {
+                    if (isJournalClosed()) {
+                        return; // Closed.
+                    }
+                    trimToSize();
+                    if (journalRebuildRequired()) {
+                        rebuildJournal();
+                        redundantOpCount = 0;
+                    }
                 }
+                journal.drain(false);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize, boolean binaryJournal) {
         this.directory = directory;
+        this.useBinaryJournal = binaryJournal;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TEMP);
@@ -201,6 +244,19 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. A journal in the other format is migrated on open.
+     *
+     * @param binaryJournal use {@link BinaryJournal}: a checkpoint snapshot plus a
+     *                      short operation tail, much faster to open than the text journal
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+                                    boolean binaryJournal) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -221,26 +277,44 @@ public final class DiskLruCache implements Closeable {
         }
 
         // Prefer to pick up where we left off.
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
+        final boolean hasBinaryJournal = BinaryJournal.exists(directory);
+        if (hasBinaryJournal || cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                if (hasBinaryJournal) {
+                    cache.readBinaryJournal();
+                } else {
+                    cache.readJournal();
+                }
                 cache.processJournal();
                 return cache;
+            } catch (JournalMismatchException otherVersion) {
+                cache.closeJournalQuietly();
+                cache.delete();
             } catch (IOException journalIsCorrupt) {
                 System.out
                         .println("DiskLruCache "
                                 + directory
                                 + " is corrupt: "
                                 + journalIsCorrupt.getMessage()
-                                + ", removing");
-                cache.delete();
+                                + ", recovering");
+                cache.closeJournalQuietly();
+                cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
+                try {
+                    cache.recoverFromFiles();
+                    return cache;
+                } catch (IOException recoverFailed) {
+                    System.out.println("DiskLruCache " + directory + " can not recover: "
+                            + recoverFailed.getMessage() + ", removing");
+                    cache.closeJournalQuietly();
+                    cache.delete();
+                }
             }
         }
 
         // Create a new empty cache.
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
         cache.rebuildJournal();
         return cache;
     }
@@ -255,12 +329,15 @@ public final class DiskLruCache implements Closeable {
             String blank = reader.readLine();
             if (!MAGIC.equals(magic)
                     || !VERSION_1.equals(version)
-                    || !Integer.toString(appVersion).equals(appVersionString)
-                    || !Integer.toString(valueCount).equals(valueCountString)
                     || !"".equals(blank)) {
                 throw new IOException("unexpected journal header: [" + magic + ", " + version + ", "
                         + valueCountString + ", " + blank + "]");
             }
+            if (!Integer.toString(appVersion).equals(appVersionString)
+                    || !Integer.toString(valueCount).equals(valueCountString)) {
+                throw new JournalMismatchException("journal of app version " + appVersionString
+                        + ", value count " + valueCountString);
+            }
 
             int lineCount = 0;
             while (true) {
@@ -274,7 +351,8 @@ public final class DiskLruCache implements Closeable {
             redundantOpCount = lineCount - lruEntries.size();
 
             // If we ended on a truncated line, rebuild the journal before appending to it.
-            if (reader.hasUnterminatedLine()) {
+            // Binary mode rebuilds too, which migrates the text journal.
+            if (reader.hasUnterminatedLine() || useBinaryJournal) {
                 rebuildJournal();
             } else {
                 journalWriter = new BufferedWriter(new OutputStreamWriter(
@@ -285,6 +363,46 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    private void readBinaryJournal() throws IOException {
+        final BinaryJournal.ReadResult result = BinaryJournal.read(directory, appVersion, valueCount, new BinaryJournal.Replay() {
+            @Override
+            public void onRecord(byte op, String key, long[] lengths) throws IOException {
+                readJournalRecord(op, key, lengths);
+                redundantOpCount++;
+            }
+        });
+        redundantOpCount = Math.max(0, redundantOpCount - lruEntries.size());
+        tailOpCount = redundantOpCount;
+        // the rebuild goes past it, a stale tail of the same generation can not be replayed later
+        journalGeneration = result.generation;
+        // Missing or truncated tail, or text journal wanted
+        if (!result.tailIntact || !useBinaryJournal) {
+            rebuildJournal();
+        } else {
+            binaryJournal = BinaryJournal.openTail(directory);
+        }
+    }
+
+    private void readJournalRecord(byte op, String key, long[] lengths) {
+        if (op == BinaryJournal.OP_REMOVE) {
+            lruEntries.remove(key);
+            return;
+        }
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        if (op == BinaryJournal.OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+        } else if (op == BinaryJournal.OP_DIRTY) {
+            entry.currentEditor = new Editor(entry, true);
+        }
+        // READ was already done by calling lruEntries.get().
+    }
+
     private void readJournalLine(String line) throws IOException {
         int firstSpace = line.indexOf(' ');
         if (firstSpace == -1) {
@@ -316,7 +434,7 @@ public final class DiskLruCache implements Closeable {
             entry.currentEditor = null;
             entry.setLengths(parts);
         } else if (secondSpace == -1 && firstSpace == DIRTY.length() && line.startsWith(DIRTY)) {
-            entry.currentEditor = new Editor(entry);
+            entry.currentEditor = new Editor(entry, true);
         } else if (secondSpace == -1 && firstSpace == READ.length() && line.startsWith(READ)) {
             // This work was already done by calling lruEntries.get().
         } else {
@@ -347,13 +465,183 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Rebuild the index from the value files when the journal is damaged. An entry is kept
+     * only if all of its values have a valid footer; other value files, dirty files and
+     * unknown files are deleted. LRU order is approximated by file modification time.
+     */
+    private void recoverFromFiles() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("can not list " + directory);
+        }
+        final Map<String, File[]> candidates = new LinkedHashMap<String, File[]>();
+        for (File file : files) {
+            final String name = file.getName();
+            if (isJournalFile(name)) {
+                continue;// replaced by the rebuilt journal
+            }
+            final int dot = name.lastIndexOf('.');
+            int index = -1;
+            if (dot > 0 && !name.endsWith(".tmp")) {
+                try {
+                    index = Integer.parseInt(name.substring(dot + 1));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            final String key = dot > 0 ? name.substring(0, dot) : name;
+            if (index < 0 || index >= valueCount || !LEGAL_KEY_PATTERN.matcher(key).matches()) {
+                deleteIfExists(file);
+                continue;
+            }
+            File[] values = candidates.get(key);
+            if (values == null) {
+                values = new File[valueCount];
+                candidates.put(key, values);
+            }
+            values[index] = file;
+        }
+
+        final Map<String, Long> modified = new LinkedHashMap<String, Long>();
+        int discarded = 0;
+        for (Map.Entry<String, File[]> candidate : candidates.entrySet()) {
+            final File[] values = candidate.getValue();
+            Entry entry = new Entry(candidate.getKey());
+            long lastModified = 0;
+            boolean valid = true;
+            for (int i = 0; i < valueCount && valid; i++) {
+                entry.lengths[i] = values[i] == null ? -1 : verifyFooter(values[i]);
+                valid = entry.lengths[i] >= 0;
+                if (valid) {
+                    lastModified = Math.max(lastModified, values[i].lastModified());
+                }
+            }
+            if (!valid) {
+                for (File value : values) {
+                    if (value != null) {
+                        deleteIfExists(value);
+                    }
+                }
+                discarded++;
+                continue;
+            }
+            entry.readable = true;
+            lruEntries.put(entry.key, entry);
+            modified.put(entry.key, lastModified);
+        }
+
+        List<Entry> entries = new ArrayList<Entry>(lruEntries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                final long l = modified.get(lhs.key);
+                final long r = modified.get(rhs.key);
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        lruEntries.clear();
+        for (Entry entry : entries) {
+            lruEntries.put(entry.key, entry);
+            for (long length : entry.lengths) {
+                size += length;
+            }
+        }
+        System.out.println("DiskLruCache " + directory + " recovered " + lruEntries.size()
+                + " entries, discarded " + discarded);
+        deleteIfExists(journalFileTmp);
+        deleteIfExists(journalFileBackup);
+        rebuildJournal();
+    }
+
+    private static boolean isJournalFile(String name) {
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TEMP.equals(name) || JOURNAL_FILE_BACKUP.equals(name)
+                || BinaryJournal.SNAPSHOT_FILE.equals(name) || BinaryJournal.SNAPSHOT_FILE_TEMP.equals(name)
+                || BinaryJournal.TAIL_FILE.equals(name);
+    }
+
+    /**
+     * @return length of the value, -1 if the footer is missing or the checksum does not match
+     */
+    private static long verifyFooter(File file) {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            final long fileLength = in.length();
+            if (fileLength < FOOTER_SIZE) {
+                return -1;
+            }
+            in.seek(fileLength - FOOTER_SIZE);
+            final int magic = in.readInt();
+            final long length = in.readLong();
+            final long crc = in.readInt() & 0xffffffffL;
+            if (magic != FOOTER_MAGIC || length != fileLength - FOOTER_SIZE) {
+                return -1;
+            }
+            in.seek(0);
+            CRC32 checksum = new CRC32();
+            byte[] buffer = new byte[8192];
+            long remaining = length;
+            while (remaining > 0) {
+                final int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) {
+                    return -1;
+                }
+                checksum.update(buffer, 0, count);
+                remaining -= count;
+            }
+            return checksum.getValue() == crc ? length : -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    private static void writeFooter(File file, long length, CRC32 checksum) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        try {
+            out.writeInt(FOOTER_MAGIC);
+            out.writeLong(length);
+            out.writeInt((int) checksum.getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void closeJournalQuietly() {
+        Util.closeQuietly(journalWriter);
+        journalWriter = null;
+        Util.closeQuietly(binaryJournal);
+        binaryJournal = null;
+    }
+
     /**
      * Creates a new journal that omits redundant information. This replaces the
      * current journal if it exists.
      */
     private synchronized void rebuildJournal() throws IOException {
+        journal.lock.lock();
+        try {
+            // Queued records are all reflected by lruEntries
+            journal.pending.clear();
+            writeNewJournal();
+        } finally {
+            journal.lock.unlock();
+        }
+    }
+
+    private void writeNewJournal() throws IOException {
         if (journalWriter != null) {
             journalWriter.close();
+            journalWriter = null;
+        }
+        if (binaryJournal != null) {
+            binaryJournal.close();
+            binaryJournal = null;
+        }
+        if (useBinaryJournal) {
+            rebuildBinaryJournal();
+            return;
         }
 
         Writer writer = new BufferedWriter(
@@ -388,6 +676,64 @@ public final class DiskLruCache implements Closeable {
 
         journalWriter = new BufferedWriter(
                 new OutputStreamWriter(new FileOutputStream(journalFile, true), Util.US_ASCII));
+        BinaryJournal.deleteFiles(directory);
+    }
+
+    /**
+     * Writes a checkpoint snapshot of all entries and starts an empty tail.
+     */
+    private void rebuildBinaryJournal() throws IOException {
+        final long generation = journalGeneration + 1;
+        DataOutputStream snapshot = BinaryJournal.beginSnapshot(directory, appVersion, valueCount, generation,
+                lruEntries.size());
+        try {
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    BinaryJournal.writeRecord(snapshot, BinaryJournal.OP_DIRTY, entry.key, null);
+                } else {
+                    BinaryJournal.writeRecord(snapshot, BinaryJournal.OP_CLEAN, entry.key, entry.lengths);
+                }
+            }
+        } catch (IOException e) {
+            Util.closeQuietly(snapshot);
+            throw e;
+        }
+        binaryJournal = BinaryJournal.commitSnapshot(directory, snapshot, generation);
+        journalGeneration = generation;
+        tailOpCount = 0;
+        // Text journal is migrated
+        journalFile.delete();
+        journalFileBackup.delete();
+    }
+
+    private void writeJournal(String op, String key, long[] lengths) throws IOException {
+        if (binaryJournal != null) {
+            final byte binaryOp;
+            if (CLEAN.equals(op)) {
+                binaryOp = BinaryJournal.OP_CLEAN;
+            } else if (DIRTY.equals(op)) {
+                binaryOp = BinaryJournal.OP_DIRTY;
+            } else if (REMOVE.equals(op)) {
+                binaryOp = BinaryJournal.OP_REMOVE;
+            } else {
+                binaryOp = BinaryJournal.OP_READ;
+            }
+            binaryJournal.append(binaryOp, key, lengths);
+        } else {
+            journalWriter.write(op + ' ' + key + (lengths == null ? "" : formatLengths(lengths)) + '\n');
+        }
+    }
+
+    private void flushJournal() throws IOException {
+        if (binaryJournal != null) {
+            binaryJournal.flush();
+        } else {
+            journalWriter.flush();
+        }
+    }
+
+    private boolean isJournalClosed() {
+        return journalWriter == null && binaryJournal == null;
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -410,45 +756,103 @@ public final class DiskLruCache implements Closeable {
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
      */
-    public synchronized Snapshot get(String key) throws IOException {
-        checkNotClosed();
+    public Snapshot get(String key) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
+        scheduler.noteActivity();
+        while (true) {
+            final Entry entry;
+            final long sequenceNumber;
+            final long[] lengths;
+            synchronized (this) {
+                checkNotClosed();
+                entry = lruEntries.get(key);
+                if (entry == null || !entry.readable) {
+                    return null;
+                }
+                sequenceNumber = entry.sequenceNumber;
+                lengths = entry.lengths.clone();
+            }
+
+            // Open all streams eagerly to guarantee that we see a single published
+            // snapshot. If we opened streams lazily then the streams could come
+            // from different edits. They are opened without the lock, a commit or
+            // remove in the meantime is detected below and the read is retried.
+            InputStream[] ins = new InputStream[valueCount];
+            try {
+                for (int i = 0; i < valueCount; i++) {
+                    ins[i] = new CheckedInputStream(entry.getCleanFile(i), lengths[i], key, sequenceNumber);
+                }
+            } catch (FileNotFoundException e) {
+                closeQuietly(ins);
+                ins = null;
+            }
+
+            synchronized (this) {
+                if (isJournalClosed() || lruEntries.get(key) != entry || entry.sequenceNumber != sequenceNumber) {
+                    closeQuietly(ins);
+                    checkNotClosed();
+                    continue;
+                }
+                if (ins == null) {
+                    return null; // A file must have been deleted manually!
+                }
+                redundantOpCount++;
+                journal.append(READ, key, null);
+                if (journalRebuildRequired()) {
+                    scheduler.schedule(cleanupJob);
+                }
+            }
+            journal.drain(false);
+            return new Snapshot(key, sequenceNumber, ins, lengths);
         }
+    }
 
-        if (!entry.readable) {
-            return null;
+    private static void closeQuietly(InputStream[] ins) {
+        if (ins != null) {
+            for (InputStream in : ins) {
+                Util.closeQuietly(in);
+            }
         }
+    }
 
-        // Open all streams eagerly to guarantee that we see a single published
-        // snapshot. If we opened streams lazily then the streams could come
-        // from different edits.
-        InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
+    /**
+     * Returns true if a readable entry named {@code key} is in the in-memory
+     * index. No file is touched and no journal record is written.
+     */
+    public synchronized boolean contains(String key) {
+        checkNotClosed();
+        validateKey(key);
+        return lruEntries.containsKey(key) && !creatingKeys.contains(key);
+    }
+
+    /**
+     * Opens the value at {@code index} of a readable entry without recording
+     * an access: the entry keeps its LRU position and no READ record is
+     * written. Returns null if the entry doesn't exist or is not readable.
+     */
+    public InputStream peek(String key, int index) {
+        validateKey(key);
+        synchronized (this) {
+            checkNotClosed();
+            if (!lruEntries.containsKey(key)) {
+                return null;
             }
+        }
+        try {
+            // file name must be same as Entry.getCleanFile(index), length is read from the footer
+            return new CheckedInputStream(new File(directory, key + "." + index), -1, key, ANY_SEQUENCE_NUMBER);
         } catch (FileNotFoundException e) {
-            // A file must have been deleted manually!
-            for (int i = 0; i < valueCount; i++) {
-                if (ins[i] != null) {
-                    Util.closeQuietly(ins[i]);
-                } else {
-                    break;
-                }
-            }
             return null;
         }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
-        }
-
-        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths);
+    /**
+     * Returns a copy of the keys of all entries, least recently used first.
+     * Entries being created by an editor are included.
+     */
+    public synchronized List<String> keys() {
+        checkNotClosed();
+        return new ArrayList<String>(lruEntries.keySet());
     }
 
     /**
@@ -456,30 +860,47 @@ public final class DiskLruCache implements Closeable {
      * edit is in progress.
      */
     public Editor edit(String key) throws IOException {
-        return edit(key, ANY_SEQUENCE_NUMBER);
+        return edit(key, ANY_SEQUENCE_NUMBER, true);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
-        checkNotClosed();
+    /**
+     * Like {@link #edit(String)}, but neither this edit nor its commit flushes the journal.
+     * The caller calls {@link #flush} once all edits of its batch are opened, before writing
+     * values, and again once they are committed. Other writers are not affected.
+     */
+    public Editor editInBatch(String key) throws IOException {
+        return edit(key, ANY_SEQUENCE_NUMBER, false);
+    }
+
+    private Editor edit(String key, long expectedSequenceNumber, boolean autoFlush) throws IOException {
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
-                || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // Snapshot is stale.
-        }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // Another edit is in progress.
-        }
+        scheduler.noteActivity();
+        final Editor editor;
+        final boolean flush;
+        synchronized (this) {
+            checkNotClosed();
+            Entry entry = lruEntries.get(key);
+            if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER && (entry == null
+                    || entry.sequenceNumber != expectedSequenceNumber)) {
+                return null; // Snapshot is stale.
+            }
+            if (entry == null) {
+                entry = new Entry(key);
+                lruEntries.put(key, entry);
+                creatingKeys.add(key);
+            } else if (entry.currentEditor != null) {
+                return null; // Another edit is in progress.
+            }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+            editor = new Editor(entry, autoFlush);
+            entry.currentEditor = editor;
+            journal.append(DIRTY, key, null);
+            flush = journalAutoFlush && autoFlush;
+        }
 
         // Flush the journal before creating files to prevent file leaks.
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        // When auto flush is off the caller must call flush() before writing values.
+        journal.drain(flush);
         return editor;
     }
 
@@ -504,7 +925,23 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized void setMaxSize(long maxSize) {
         this.maxSize = maxSize;
-        executorService.submit(cleanupCallable);
+        scheduler.schedule(cleanupJob);
+    }
+
+    /**
+     * Called with the cache lock held when an entry is evicted to fit the max size.
+     */
+    public synchronized void setEvictionListener(EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * Whether the journal is flushed on every {@link #edit} and commit. Batch
+     * writers may turn it off and call {@link #flush} once per batch, after
+     * the edits are opened and again after they are committed.
+     */
+    public synchronized void setJournalAutoFlush(boolean autoFlush) {
+        this.journalAutoFlush = autoFlush;
     }
 
     /**
@@ -512,18 +949,23 @@ public final class DiskLruCache implements Closeable {
      * this cache. This may be greater than the max size if a background
      * deletion is pending.
      */
-    public synchronized long size() {
+    public long size() {
         return size;
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
-        Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
+    private void completeEdit(Editor editor, boolean success) throws IOException {
+        final Entry entry = editor.entry;
+        final boolean readable;
+        synchronized (this) {
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException();
+            }
+            readable = entry.readable;
         }
 
+        // The dirty files belong to the editor, they are checked and finished without the lock.
         // If this edit is creating the entry for the first time, every index must have a value.
-        if (success && !entry.readable) {
+        if (success && !readable) {
             for (int i = 0; i < valueCount; i++) {
                 if (!editor.written[i]) {
                     editor.abort();
@@ -535,47 +977,63 @@ public final class DiskLruCache implements Closeable {
                 }
             }
         }
-
+        final long[] newLengths = new long[valueCount];
         for (int i = 0; i < valueCount; i++) {
             File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
-                }
+            if (success && dirty.exists()) {
+                newLengths[i] = dirty.length();
+                writeFooter(dirty, newLengths[i], editor.checksumOf(i, dirty));
             } else {
+                newLengths[i] = -1;
                 deleteIfExists(dirty);
             }
         }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+        final boolean flush;
+        synchronized (this) {
+            if (entry.currentEditor != editor) {
+                throw new IllegalStateException(); // Aborted by close()
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-        }
-        journalWriter.flush();
+            for (int i = 0; i < valueCount; i++) {
+                if (newLengths[i] >= 0) {
+                    entry.getDirtyFile(i).renameTo(entry.getCleanFile(i));
+                    long oldLength = entry.lengths[i];
+                    entry.lengths[i] = newLengths[i];
+                    size = size - oldLength + newLengths[i];
+                }
+            }
+
+            redundantOpCount++;
+            entry.currentEditor = null;
+            creatingKeys.remove(entry.key);
+            if (entry.readable | success) {
+                entry.readable = true;
+                journal.append(CLEAN, entry.key, entry.lengths);
+                if (success) {
+                    entry.sequenceNumber = nextSequenceNumber++;
+                }
+            } else {
+                lruEntries.remove(entry.key);
+                journal.append(REMOVE, entry.key, null);
+            }
+            flush = journalAutoFlush && editor.autoFlush;
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            if (size > maxSize || journalRebuildRequired()) {
+                scheduler.schedule(cleanupJob);
+            }
         }
+        journal.drain(flush);
     }
 
     /**
      * We only rebuild the journal when it will halve the size of the journal
-     * and eliminate at least 2000 ops.
+     * and eliminate at least 2000 ops. The binary tail is checkpointed once it
+     * is half the snapshot, so open never replays many operations.
      */
     private boolean journalRebuildRequired() {
+        if (binaryJournal != null) {
+            return tailOpCount >= Math.max(1000, lruEntries.size() / 2);
+        }
         final int redundantOpCompactThreshold = 2000;
         return redundantOpCount >= redundantOpCompactThreshold //
                 && redundantOpCount >= lruEntries.size();
@@ -587,9 +1045,18 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
-        checkNotClosed();
+    public boolean remove(String key) throws IOException {
         validateKey(key);
+        final boolean removed;
+        synchronized (this) {
+            checkNotClosed();
+            removed = removeEntry(key);
+        }
+        journal.drain(false);
+        return removed;
+    }
+
+    private boolean removeEntry(String key) throws IOException {
         Entry entry = lruEntries.get(key);
         if (entry == null || entry.currentEditor != null) {
             return false;
@@ -605,11 +1072,11 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journal.append(REMOVE, key, null);
         lruEntries.remove(key);
 
         if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            scheduler.schedule(cleanupJob);
         }
 
         return true;
@@ -619,11 +1086,11 @@ public final class DiskLruCache implements Closeable {
      * Returns true if this cache has been closed.
      */
     public synchronized boolean isClosed() {
-        return journalWriter == null;
+        return isJournalClosed();
     }
 
     private void checkNotClosed() {
-        if (journalWriter == null) {
+        if (isJournalClosed()) {
             throw new IllegalStateException("cache is closed");
         }
     }
@@ -631,17 +1098,19 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
-        checkNotClosed();
-        trimToSize();
-        journalWriter.flush();
+    public void flush() throws IOException {
+        synchronized (this) {
+            checkNotClosed();
+            trimToSize();
+        }
+        journal.drain(true);
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
     public synchronized void close() throws IOException {
-        if (journalWriter == null) {
+        if (isJournalClosed()) {
             return; // Already closed.
         }
         for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
@@ -650,14 +1119,33 @@ public final class DiskLruCache implements Closeable {
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        scheduler.cancel(cleanupJob);
+        journal.lock.lock();
+        try {
+            journal.writePending();
+            if (binaryJournal != null) {
+                binaryJournal.close();
+                binaryJournal = null;
+            } else {
+                journalWriter.close();
+                journalWriter = null;
+            }
+        } finally {
+            journal.lock.unlock();
+        }
     }
 
     private void trimToSize() throws IOException {
         while (size > maxSize) {
             Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+            long bytes = 0;
+            for (long length : toEvict.getValue().lengths) {
+                bytes += length;
+            }
+            String key = toEvict.getKey();
+            if (removeEntry(key) && evictionListener != null) {
+                evictionListener.onEvicted(key, bytes);
+            }
         }
     }
 
@@ -683,6 +1171,10 @@ public final class DiskLruCache implements Closeable {
         return Util.readFully(new InputStreamReader(in, Util.UTF_8));
     }
 
+    public interface EvictionListener {
+        void onEvicted(String key, long bytes);
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
@@ -705,7 +1197,7 @@ public final class DiskLruCache implements Closeable {
          * is in progress.
          */
         public Editor edit() throws IOException {
-            return DiskLruCache.this.edit(key, sequenceNumber);
+            return DiskLruCache.this.edit(key, sequenceNumber, true);
         }
 
         /**
@@ -736,6 +1228,240 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * The journal is readable but written by another app version or value count,
+     * the entries can not be salvaged.
+     */
+    static final class JournalMismatchException extends IOException {
+        JournalMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Drop the entry whose value failed the checksum, unless it has been edited since.
+     */
+    private void removeCorrupt(String key, long sequenceNumber) {
+        try {
+            synchronized (this) {
+                Entry entry = lruEntries.get(key);
+                if (isJournalClosed() || entry == null || entry.sequenceNumber != sequenceNumber) {
+                    return;
+                }
+                removeEntry(key);
+            }
+            journal.drain(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads a value file up to the value length and checks the footer at the end. A checksum
+     * mismatch fails the read with an IOException and the entry is removed. Files without
+     * footer are read as they are.
+     */
+    private final class CheckedInputStream extends FilterInputStream {
+        private final String key;
+        private final long sequenceNumber;
+        private final CRC32 checksum;
+        private final boolean hasFooter;
+        private long remaining;
+        private boolean skipped;
+        // reused by read(), streams are not shared between threads
+        private final byte[] single = new byte[1];
+
+        /**
+         * @param length value length, negative to take it from the footer
+         */
+        private CheckedInputStream(File file, long length, String key, long sequenceNumber)
+                throws FileNotFoundException {
+            super(new FileInputStream(file));
+            final long fileLength = file.length();
+            if (length < 0) {
+                length = hasFooter(file, fileLength) ? fileLength - FOOTER_SIZE : fileLength;
+            }
+            this.key = key;
+            this.sequenceNumber = sequenceNumber;
+            this.checksum = new CRC32();
+            this.hasFooter = fileLength == length + FOOTER_SIZE;
+            this.remaining = hasFooter ? length : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count == -1) {
+                if (hasFooter) {
+                    throw corrupt("value truncated");
+                }
+                return -1;
+            }
+            if (hasFooter) {
+                checksum.update(buffer, offset, count);
+                remaining -= count;
+                if (remaining == 0) {
+                    verify();
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes are not in the checksum
+            final long skippedCount = in.skip(Math.min(count, remaining));
+            remaining -= skippedCount;
+            skipped = true;
+            return skippedCount;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void verify() throws IOException {
+            if (skipped) {
+                return;
+            }
+            byte[] footer = new byte[FOOTER_SIZE];
+            int read = 0;
+            while (read < FOOTER_SIZE) {
+                final int count = in.read(footer, read, FOOTER_SIZE - read);
+                if (count == -1) {
+                    throw corrupt("footer truncated");
+                }
+                read += count;
+            }
+            final long crc = readInt(footer, 12) & 0xffffffffL;
+            if (readInt(footer, 0) != FOOTER_MAGIC || crc != checksum.getValue()) {
+                throw corrupt("checksum mismatch");
+            }
+        }
+
+        private IOException corrupt(String message) {
+            if (sequenceNumber != ANY_SEQUENCE_NUMBER) {
+                removeCorrupt(key, sequenceNumber);
+            }
+            return new IOException(key + ": " + message);
+        }
+    }
+
+    private static boolean hasFooter(File file, long fileLength) {
+        if (fileLength < FOOTER_SIZE) {
+            return false;
+        }
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            in.seek(fileLength - FOOTER_SIZE);
+            return in.readInt() == FOOTER_MAGIC && in.readLong() == fileLength - FOOTER_SIZE;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    private static int readInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+    }
+
+    private static String formatLengths(long[] lengths) {
+        StringBuilder result = new StringBuilder();
+        for (long size : lengths) {
+            result.append(' ').append(size);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Journal records are queued with the cache lock held, so they keep the order of the index
+     * changes, and written without it by whichever thread drains the queue. Lock order is the
+     * cache lock first, then {@link #lock}.
+     */
+    private final class JournalAppender {
+        final ReentrantLock lock = new ReentrantLock();
+        final ConcurrentLinkedQueue<JournalRecord> pending = new ConcurrentLinkedQueue<JournalRecord>();
+
+        /**
+         * Called with the cache lock held.
+         */
+        void append(String op, String key, long[] lengths) {
+            pending.add(new JournalRecord(op, key, lengths == null ? null : lengths.clone()));
+            if (binaryJournal != null) {
+                tailOpCount++;
+            }
+        }
+
+        /**
+         * Write the queued records. Unless a flush is needed, a thread already writing is not
+         * waited for. A record queued after that thread's last poll finds the lock taken, so
+         * each caller checks the queue again after its unlock and takes the lock if it is free.
+         */
+        void drain(boolean flush) throws IOException {
+            if (flush) {
+                lock.lock();
+                try {
+                    writePending();
+                    if (!isJournalClosed()) {
+                        flushJournal();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            while (!pending.isEmpty() && lock.tryLock()) {
+                try {
+                    writePending();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Called with {@link #lock} held.
+         */
+        void writePending() throws IOException {
+            JournalRecord record;
+            while ((record = pending.poll()) != null) {
+                if (isJournalClosed()) {
+                    pending.clear();
+                    return;
+                }
+                writeJournal(record.op, record.key, record.lengths);
+            }
+        }
+    }
+
+    private static final class JournalRecord {
+        final String op;
+        final String key;
+        final long[] lengths;
+
+        JournalRecord(String op, String key, long[] lengths) {
+            this.op = op;
+            this.key = key;
+            this.lengths = lengths;
+        }
+    }
+
     private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
         @Override
         public void write(int b) throws IOException {
@@ -749,12 +1475,38 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private final boolean[] written;
+        private final CRC32[] checksums;
         private boolean hasErrors;
         private boolean committed;
+        // false if opened by editInBatch, the batch flushes the journal
+        private final boolean autoFlush;
 
-        private Editor(Entry entry) {
+        private Editor(Entry entry, boolean autoFlush) {
             this.entry = entry;
+            this.autoFlush = autoFlush;
             this.written = (entry.readable) ? null : new boolean[valueCount];
+            this.checksums = new CRC32[valueCount];
+        }
+
+        /**
+         * Checksum of the written value, or of the dirty file if it was not written by this editor.
+         */
+        private CRC32 checksumOf(int index, File dirty) throws IOException {
+            if (checksums[index] != null) {
+                return checksums[index];
+            }
+            CRC32 checksum = new CRC32();
+            InputStream in = new FileInputStream(dirty);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    checksum.update(buffer, 0, count);
+                }
+            } finally {
+                Util.closeQuietly(in);
+            }
+            return checksum;
         }
 
         /**
@@ -762,6 +1514,7 @@ public final class DiskLruCache implements Closeable {
          * or null if no value has been committed.
          */
         public InputStream newInputStream(int index) throws IOException {
+            final long length;
             synchronized (DiskLruCache.this) {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
@@ -769,11 +1522,13 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                try {
-                    return new FileInputStream(entry.getCleanFile(index));
-                } catch (FileNotFoundException e) {
-                    return null;
-                }
+                length = entry.lengths[index];
+            }
+            // Only this editor can replace the clean file
+            try {
+                return new CheckedInputStream(entry.getCleanFile(index), length, entry.key, ANY_SEQUENCE_NUMBER);
+            } catch (FileNotFoundException e) {
+                return null;
             }
         }
 
@@ -806,22 +1561,24 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     written[index] = true;
                 }
-                File dirtyFile = entry.getDirtyFile(index);
-                FileOutputStream outputStream;
+            }
+            // The dirty file belongs to this editor, it is opened without the lock
+            File dirtyFile = entry.getDirtyFile(index);
+            FileOutputStream outputStream;
+            try {
+                outputStream = new FileOutputStream(dirtyFile);
+            } catch (FileNotFoundException e) {
+                // Attempt to recreate the cache directory.
+                directory.mkdirs();
                 try {
                     outputStream = new FileOutputStream(dirtyFile);
-                } catch (FileNotFoundException e) {
-                    // Attempt to recreate the cache directory.
-                    directory.mkdirs();
-                    try {
-                        outputStream = new FileOutputStream(dirtyFile);
-                    } catch (FileNotFoundException e2) {
-                        // We are unable to recover. Silently eat the writes.
-                        return NULL_OUTPUT_STREAM;
-                    }
+                } catch (FileNotFoundException e2) {
+                    // We are unable to recover. Silently eat the writes.
+                    return NULL_OUTPUT_STREAM;
                 }
-                return new FaultHidingOutputStream(outputStream);
             }
+            checksums[index] = new CRC32();
+            return new FaultHidingOutputStream(outputStream, checksums[index]);
         }
 
         /**
@@ -869,14 +1626,18 @@ public final class DiskLruCache implements Closeable {
         }
 
         private class FaultHidingOutputStream extends FilterOutputStream {
-            private FaultHidingOutputStream(OutputStream out) {
+            private final CRC32 checksum;
+
+            private FaultHidingOutputStream(OutputStream out, CRC32 checksum) {
                 super(out);
+                this.checksum = checksum;
             }
 
             @Override
             public void write(int oneByte) {
                 try {
                     out.write(oneByte);
+                    checksum.update(oneByte);
                 } catch (IOException e) {
                     hasErrors = true;
                 }
@@ -886,6 +1647,7 @@ public final class DiskLruCache implements Closeable {
             public void write(byte[] buffer, int offset, int length) {
                 try {
                     out.write(buffer, offset, length);
+                    checksum.update(buffer, offset, length);
                 } catch (IOException e) {
                     hasErrors = true;
                 }
@@ -940,11 +1702,7 @@ public final class DiskLruCache implements Closeable {
         }
 
         public String getLengths() throws IOException {
-            StringBuilder result = new StringBuilder();
-            for (long size : lengths) {
-                result.append(' ').append(size);
-            }
-            return result.toString();
+            return formatLengths(lengths);
         }
 
         /**
@@ -35,6 +35,11 @@ public abstract class HttpClientAgent {
 
     public abstract void enqueue(Request request);
 
+    /**
+     * Run the request on the caller's thread, callbacks are dispatched as by {@link #enqueue}.
+     */
+    public abstract void executeBlocking(Request request);
+
     public abstract void parallelExecute(Request... requests);
 
     public abstract void cancel(Object... tags);
@@ -62,65 +62,75 @@ public class HttpConnectionAgent extends HttpClientAgent {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                RequestAdapter callback = request.getRequestAdapter();
-
-                if (callback != null && callback.onRequestPrepare(request)) {
-                    // no need handle continue
-                    return;
-                }
-                // get response
-                HttpURLConnection connection = null;
-                try {
-                    // set url
-                    URL url = new URL(request.getUrlByMethod());
-                    connection = (HttpURLConnection) url.openConnection();
-                    convert(request, connection);
-                    connection.connect();
-                    // set body
-                    if (request.getBody() != null) {
-                        DataOutputStream dataOutputStream = new DataOutputStream(connection.getOutputStream());
-                        dataOutputStream.write(request.getBody());
-                        dataOutputStream.flush();
-                        dataOutputStream.close();
-                    }
-                    int code = connection.getResponseCode();
-                    String message = connection.getResponseMessage();
-
-                    if (callback != null && callback.onRequestResponse(connection)) {
-                        connection.disconnect();
-                        // no need handle continue
-                        return;
-                    }
-                    if (code != HttpURLConnection.HTTP_OK) {
-                        throw new IllegalStateException("Response code: " + code + "; message: " + message);
-                    }
-                } catch (Exception e) {
-                    if (connection != null) {
-                        connection.disconnect();
-                    }
-                    dispatchError(callback, e);
-                    // break; request error
-                    return;
-                }
-                // parse
-                IDataParser parser = request.getDataParser();
-                if (parser == null) {
-                    connection.disconnect();
-                    dispatchSuccess(callback, null);
-                } else {
-                    try {
-                        parser.parse(connection.getInputStream());
-                        dispatchSuccess(callback, parser.getResult());
-                    } catch (Exception e) {
-                        dispatchError(callback, e);
-                    } finally {
-                        connection.disconnect();
-                    }
-                }
+                executeBlocking(request);
             }
         });
     }
 
+    @Override
+    public void executeBlocking(Request request) {
+        if (request == null) {
+            Log.e(TAG, "Client or request must not null !");
+            return;
+        }
+
+        RequestAdapter callback = request.getRequestAdapter();
+
+        if (callback != null && callback.onRequestPrepare(request)) {
+            // no need handle continue
+            return;
+        }
+        // get response
+        HttpURLConnection connection = null;
+        try {
+            // set url
+            URL url = new URL(request.getUrlByMethod());
+            connection = (HttpURLConnection) url.openConnection();
+            convert(request, connection);
+            connection.connect();
+            // set body
+            if (request.getBody() != null) {
+                DataOutputStream dataOutputStream = new DataOutputStream(connection.getOutputStream());
+                dataOutputStream.write(request.getBody());
+                dataOutputStream.flush();
+                dataOutputStream.close();
+            }
+            int code = connection.getResponseCode();
+            String message = connection.getResponseMessage();
+
+            if (callback != null && callback.onRequestResponse(connection)) {
+                connection.disconnect();
+                // no need handle continue
+                return;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IllegalStateException("Response code: " + code + "; message: " + message);
+            }
+        } catch (Exception e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            dispatchError(callback, e);
+            // break; request error
+            return;
+        }
+        // parse
+        IDataParser parser = request.getDataParser();
+        if (parser == null) {
+            connection.disconnect();
+            dispatchSuccess(callback, null);
+        } else {
+            try {
+                parser.parse(connection.getInputStream());
+                dispatchSuccess(callback, parser.getResult());
+            } catch (Exception e) {
+                dispatchError(callback, e);
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+
     @Override
     public void parallelExecute(Request... requests) {
         if (requests == null || requests.length == 0) {
@@ -92,44 +92,54 @@ public class OkHttp2Agent extends HttpClientAgent {
         executor.execute(new Runnable() {
             @Override
             public void run() {
-                RequestAdapter callback = request.getRequestAdapter();
-
-                if (callback != null && callback.onRequestPrepare(request)) {
-                    // no need handle continue
-                    return;
-                }
-                // get response
-                Response response = null;
-                try {
-                    response = execute(request);
-                    if (callback != null && callback.onRequestResponse(response)) {
-                        // no need handle continue
-                        return;
-                    }
-                    if (response.code() != HttpURLConnection.HTTP_OK) {
-                        throw new IllegalStateException("Response code: " + response.code() + "; message: " + response.message());
-                    }
-                } catch (Exception e) {
-                    dispatchError(callback, e);
-                    // break; request error
-                    return;
-                }
-                // parse
-                IDataParser parser = request.getDataParser();
-                if (parser == null) {
-                    dispatchSuccess(callback, null);
-                } else {
-                    try {
-                        parser.parse(response.body().byteStream());
-                        dispatchSuccess(callback, parser.getResult());
-                    } catch (Exception e) {
-                        dispatchError(callback, e);
-                    }
-                }
+                executeBlocking(request);
             }
         });
     }
 
+    @Override
+    public void executeBlocking(Request request) {
+        if (client == null || request == null) {
+            Log.e(TAG, "client or request must not null !");
+            return;
+        }
+
+        RequestAdapter callback = request.getRequestAdapter();
+
+        if (callback != null && callback.onRequestPrepare(request)) {
+            // no need handle continue
+            return;
+        }
+        // get response
+        Response response = null;
+        try {
+            response = execute(request);
+            if (callback != null && callback.onRequestResponse(response)) {
+                // no need handle continue
+                return;
+            }
+            if (response.code() != HttpURLConnection.HTTP_OK) {
+                throw new IllegalStateException("Response code: " + response.code() + "; message: " + response.message());
+            }
+        } catch (Exception e) {
+            dispatchError(callback, e);
+            // break; request error
+            return;
+        }
+        // parse
+        IDataParser parser = request.getDataParser();
+        if (parser == null) {
+            dispatchSuccess(callback, null);
+        } else {
+            try {
+                parser.parse(response.body().byteStream());
+                dispatchSuccess(callback, parser.getResult());
+            } catch (Exception e) {
+                dispatchError(callback, e);
+            }
+        }
+    }
+
     @Override
     public void parallelExecute(Request... requests) {
         if (client == null || requests == null || requests.length == 0) {
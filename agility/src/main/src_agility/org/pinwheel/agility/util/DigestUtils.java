@@ -1,7 +1,5 @@
 package org.pinwheel.agility.util;
 
-import java.security.MessageDigest;
-
 /**
  * Copyright (C), 2015 <br>
  * <br>
@@ -28,16 +26,7 @@ public final class DigestUtils {
      * @return String
      */
     public static String md5(String str) {
-        if (str == null) {
-            return null;
-        }
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            messageDigest.update(str.getBytes());
-            return new String(encodeHex(messageDigest.digest()));
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return KeyDigest.md5(str);
     }
 
     /**
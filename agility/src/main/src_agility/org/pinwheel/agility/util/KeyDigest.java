@@ -0,0 +1,212 @@
+package org.pinwheel.agility.util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ * Cache key derivation shared by the caches, ImageLoader and Downloader. Each thread keeps
+ * its own MessageDigest and buffers, hex is written from a table, so a key costs the digest
+ * and the result String only.
+ * <p>
+ * {@link Mode#HASH_128} is MurmurHash3 x64 128 over the UTF-16 chars, several times faster
+ * than MD5 and fine for cache keys, but not for anything that needs a cryptographic hash.
+ * Both give 32 lowercase hex chars; keys of one mode never match keys of the other.
+ *
+ * @author dnwang
+ */
+public final class KeyDigest {
+
+    public enum Mode {
+        MD5, HASH_128
+    }
+
+    /**
+     * Two hex chars of each byte value
+     */
+    private static final char[] HEX_PAIRS = new char[512];
+
+    static {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        for (int i = 0; i < 256; i++) {
+            HEX_PAIRS[i << 1] = digits[i >>> 4];
+            HEX_PAIRS[(i << 1) + 1] = digits[i & 0xf];
+        }
+    }
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private KeyDigest() {
+        throw new AssertionError();
+    }
+
+    /**
+     * @return null for null
+     */
+    public static String of(String data, Mode mode) {
+        return mode == Mode.HASH_128 ? hash128(data) : md5(data);
+    }
+
+    /**
+     * Same as MD5 of {@code data.getBytes("UTF-8")} in lowercase hex.
+     *
+     * @return null for null
+     */
+    public static String md5(String data) {
+        if (data == null) {
+            return null;
+        }
+        final State state = STATE.get();
+        if (state.md5 == null) {
+            return String.valueOf(data.hashCode());
+        }
+        final int length = data.length();
+        if (state.bytes.length < length) {
+            state.bytes = new byte[Math.max(length, state.bytes.length << 1)];
+        }
+        final byte[] bytes = state.bytes;
+        int i = 0;
+        // ascii fast path, urls mostly
+        for (; i < length; i++) {
+            final char c = data.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            bytes[i] = (byte) c;
+        }
+        if (i == length) {
+            state.md5.update(bytes, 0, length);
+        } else {
+            try {
+                state.md5.update(data.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        final byte[] digest = state.md5.digest();
+        final char[] out = state.hex;
+        for (int b = 0; b < 16; b++) {
+            final int pair = (digest[b] & 0xff) << 1;
+            out[b << 1] = HEX_PAIRS[pair];
+            out[(b << 1) + 1] = HEX_PAIRS[pair + 1];
+        }
+        return new String(out);
+    }
+
+    /**
+     * MurmurHash3 x64 128 of the chars of {@code data}, seed 0.
+     *
+     * @return null for null
+     */
+    public static String hash128(String data) {
+        if (data == null) {
+            return null;
+        }
+        final int length = data.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        // 8 chars a block
+        for (; i + 8 <= length; i += 8) {
+            long k1 = pack(data, i, 4);
+            long k2 = pack(data, i + 4, 4);
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        final int tail = length - i;
+        if (tail > 4) {
+            long k2 = pack(data, i + 4, tail - 4);
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+        }
+        if (tail > 0) {
+            long k1 = pack(data, i, Math.min(4, tail));
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+        }
+        h1 ^= length << 1;
+        h2 ^= length << 1;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        final char[] out = STATE.get().hex;
+        writeHex(h1, out, 0);
+        writeHex(h2, out, 16);
+        return new String(out);
+    }
+
+    private static long pack(String data, int offset, int count) {
+        long k = 0;
+        for (int j = 0; j < count; j++) {
+            k |= (long) data.charAt(offset + j) << (j << 4);
+        }
+        return k;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static void writeHex(long value, char[] out, int offset) {
+        for (int shift = 56; shift >= 0; shift -= 8, offset += 2) {
+            final int pair = (int) ((value >>> shift) & 0xff) << 1;
+            out[offset] = HEX_PAIRS[pair];
+            out[offset + 1] = HEX_PAIRS[pair + 1];
+        }
+    }
+
+    private static final class State {
+        final MessageDigest md5;
+        byte[] bytes = new byte[256];
+        final char[] hex = new char[32];
+
+        State() {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                digest = null;
+            }
+            this.md5 = digest;
+        }
+    }
+
+}
@@ -0,0 +1,315 @@
+package org.pinwheel.sample.activity;
+
+import org.pinwheel.agility.cache.CacheStats;
+import org.pinwheel.agility.cache.DiskCache;
+import org.pinwheel.agility.cache.MemoryCache;
+import org.pinwheel.agility.cache.ObjectEntity;
+import org.pinwheel.agility.cache.lru.DiskLruCache;
+import org.pinwheel.agility.util.FileUtils;
+import org.pinwheel.agility.util.IOUtils;
+import org.pinwheel.agility.util.KeyDigest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copyright (C), 2015 <br>
+ * <br>
+ * All rights reserved <br>
+ * <br>
+ *
+ * @author dnwang
+ */
+public class CacheBenchmarkActivity extends AbsMethodListActivity {
+
+    @Override
+    protected void beforeInitView() {
+
+    }
+
+    @Override
+    protected void afterInitView() {
+
+    }
+
+    private File benchDir(String name) {
+        File dir = new File(getCacheDir(), "bench_" + name);
+        FileUtils.delete(dir);
+        return dir;
+    }
+
+    private void runInBackground(Runnable task) {
+        showLogger(true);
+        new Thread(task).start();
+    }
+
+    @TestMethod(title = "DiskCache 查找: contains / 目录扫描")
+    public void diskCacheContains() {
+        runInBackground(() -> {
+            final int lookups = 2000;
+            for (int entries : new int[]{500, 2000, 8000}) {
+                File dir = benchDir("contains_" + entries);
+                DiskCache diskCache = new DiskCache(dir, 0, 64 * 1024 * 1024, true);
+                diskCache.setBloomFilterEnabled(true);
+                byte[] value = new byte[16];
+                for (int i = 0; i < entries; i++) {
+                    diskCache.setCache("k" + i, new ByteArrayInputStream(value));
+                }
+                diskCache.release();
+                diskCache = new DiskCache(dir, 0, 64 * 1024 * 1024);
+                diskCache.setBloomFilterEnabled(true);
+
+                long begin = System.nanoTime();
+                int hit = 0;
+                for (int i = 0; i < lookups; i++) {
+                    // half hit, half miss
+                    if (diskCache.contains((i & 1) == 0 ? "k" + (i % entries) : "miss" + i)) {
+                        hit++;
+                    }
+                }
+                long indexNs = (System.nanoTime() - begin) / lookups;
+
+                final int scanLookups = 50;
+                begin = System.nanoTime();
+                for (int i = 0; i < scanLookups; i++) {
+                    String prefix = "k" + (i % entries) + ".";
+                    for (String name : dir.list()) {
+                        if (name.startsWith(prefix)) {
+                            break;
+                        }
+                    }
+                }
+                long scanNs = (System.nanoTime() - begin) / scanLookups;
+                logout(String.format("entries:%d, contains:%dns/op (hit %d), list scan:%dns/op", entries, indexNs, hit, scanNs));
+                diskCache.delete();
+            }
+        });
+    }
+
+    @TestMethod(title = "DiskCache 后端: LRU_FILE / SEGMENT")
+    public void diskCacheBackend() {
+        runInBackground(() -> {
+            final int entries = 3000;
+            byte[] value = new byte[2 * 1024];
+            for (DiskCache.Type type : DiskCache.Type.values()) {
+                File dir = benchDir("backend_" + type);
+                DiskCache diskCache = DiskCache.open(type, dir, 0, 64 * 1024 * 1024, false);
+                long begin = System.nanoTime();
+                for (int i = 0; i < entries; i++) {
+                    diskCache.setCache("k" + i, new ByteArrayInputStream(value));
+                }
+                long writeUs = (System.nanoTime() - begin) / 1000 / entries;
+                diskCache.release();
+
+                begin = System.nanoTime();
+                diskCache = DiskCache.open(type, dir, 0, 64 * 1024 * 1024, false);
+                long openMs = (System.nanoTime() - begin) / 1000000;
+
+                begin = System.nanoTime();
+                long bytes = 0;
+                for (int i = 0; i < entries; i++) {
+                    bytes += IOUtils.stream2Bytes(diskCache.getCache("k" + (i * 7 % entries))).length;
+                }
+                long readUs = (System.nanoTime() - begin) / 1000 / entries;
+                logout(String.format("%s: write:%dus/op, open:%dms, read:%dus/op (%dKB)", type, writeUs, openMs, readUs, bytes / 1024));
+                diskCache.delete();
+            }
+        });
+    }
+
+    @TestMethod(title = "DiskLruCache 并发读: 1 / 2 / 4 / 8 线程")
+    public void diskCacheConcurrentRead() {
+        runInBackground(() -> {
+            final int entries = 1000;
+            final long durationNs = 2000L * 1000 * 1000;
+            File dir = benchDir("concurrent_read");
+            try {
+                final DiskLruCache cache = DiskLruCache.open(dir, 0, 1, 64 * 1024 * 1024);
+                byte[] value = new byte[4 * 1024];
+                for (int i = 0; i < entries; i++) {
+                    DiskLruCache.Editor editor = cache.edit("k" + i);
+                    OutputStream outputStream = editor.newOutputStream(0);
+                    outputStream.write(value);
+                    outputStream.close();
+                    editor.commit();
+                }
+                for (int threads : new int[]{1, 2, 4, 8}) {
+                    final AtomicLong reads = new AtomicLong();
+                    final long deadline = System.nanoTime() + durationNs;
+                    Thread[] workers = new Thread[threads];
+                    for (int t = 0; t < threads; t++) {
+                        workers[t] = new Thread(() -> {
+                            Random random = new Random();
+                            byte[] buffer = new byte[8 * 1024];
+                            while (System.nanoTime() < deadline) {
+                                try {
+                                    DiskLruCache.Snapshot snapshot = cache.get("k" + random.nextInt(entries));
+                                    if (snapshot != null) {
+                                        InputStream inputStream = snapshot.getInputStream(0);
+                                        while (inputStream.read(buffer) != -1) {
+                                        }
+                                        snapshot.close();
+                                        reads.incrementAndGet();
+                                    }
+                                } catch (IOException e) {
+                                    e.printStackTrace();
+                                    return;
+                                }
+                            }
+                        });
+                        workers[t].start();
+                    }
+                    for (Thread worker : workers) {
+                        worker.join();
+                    }
+                    logout(String.format("threads:%d, read:%d ops/s", threads, reads.get() * 1000 * 1000 * 1000 / durationNs));
+                }
+                cache.delete();
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    @TestMethod(title = "缓存 key: MessageDigest / KeyDigest.md5 / hash128")
+    public void cacheKeyDerivation() {
+        runInBackground(() -> {
+            final int count = 20000;
+            String[] urls = new String[count];
+            for (int i = 0; i < count; i++) {
+                urls[i] = "http://img.example.com/feed/2016/03/photo_" + i + ".jpg?w=720&h=480";
+            }
+            for (int round = 0; round < 3; round++) {
+                long begin = System.nanoTime();
+                for (String url : urls) {
+                    legacyMd5(url);
+                }
+                long legacyNs = (System.nanoTime() - begin) / count;
+                begin = System.nanoTime();
+                for (String url : urls) {
+                    KeyDigest.md5(url);
+                }
+                long md5Ns = (System.nanoTime() - begin) / count;
+                begin = System.nanoTime();
+                for (String url : urls) {
+                    KeyDigest.hash128(url);
+                }
+                long hashNs = (System.nanoTime() - begin) / count;
+                logout(String.format("round %d: MessageDigest:%dns/key, KeyDigest.md5:%dns/key, hash128:%dns/key", round, legacyNs, md5Ns, hashNs));
+            }
+        });
+    }
+
+    /**
+     * Key derivation the caches used before {@link KeyDigest}
+     */
+    private static String legacyMd5(String data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(data.getBytes());
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                String hex = Integer.toHexString(0xFF & b);
+                if (hex.length() == 1) {
+                    sb.append('0');
+                }
+                sb.append(hex);
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(data.hashCode());
+        }
+    }
+
+
+    /**
+     * Replay {@code cache_trace.txt} in external files dir if present, one access per line: "key [bytes]".
+     * Otherwise a synthetic feed: reused icons and avatars mixed with scrolls of one-off images.
+     */
+    @TestMethod(title = "MemoryCache 策略: LRU / TINY_LFU 轨迹回放")
+    public void memoryCachePolicy() {
+        runInBackground(() -> {
+            List<String> keys = new ArrayList<>();
+            List<Integer> sizes = new ArrayList<>();
+            File traceFile = new File(getExternalFilesDir(null), "cache_trace.txt");
+            if (traceFile.exists()) {
+                loadTrace(traceFile, keys, sizes);
+            } else {
+                Random random = new Random(7);
+                int image = 0;
+                for (int i = 0; i < 200000; i++) {
+                    if ((i / 4000) % 3 == 2) {
+                        keys.add("image" + (image++));
+                        sizes.add(64 * 1024);
+                    } else {
+                        // skewed reuse of 2000 icons and avatars
+                        keys.add("icon" + (int) (Math.pow(random.nextDouble(), 3) * 2000));
+                        sizes.add(16 * 1024);
+                    }
+                }
+            }
+            logout(String.format("trace: %s, %d accesses", traceFile.exists() ? traceFile.getName() : "synthetic", keys.size()));
+            for (int cacheSize : new int[]{4 * 1024 * 1024, 16 * 1024 * 1024}) {
+                for (MemoryCache.Policy policy : MemoryCache.Policy.values()) {
+                    MemoryCache memoryCache = new MemoryCache(cacheSize, policy);
+                    long begin = System.nanoTime();
+                    for (int i = 0; i < keys.size(); i++) {
+                        if (memoryCache.getCache(keys.get(i)) == null) {
+                            memoryCache.setCache(keys.get(i), new TraceEntity(sizes.get(i)));
+                        }
+                    }
+                    long opNs = (System.nanoTime() - begin) / keys.size();
+                    CacheStats.Snapshot snapshot = memoryCache.getStats().snapshot();
+                    logout(String.format("%dM %s: hit rate:%.2f%%, evictions:%d, %dns/op",
+                            cacheSize / 1024 / 1024, policy, snapshot.getHitRate() * 100, snapshot.getEvictionCount(), opNs));
+                    memoryCache.release();
+                }
+            }
+        });
+    }
+
+    private void loadTrace(File traceFile, List<String> keys, List<Integer> sizes) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(traceFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+                keys.add(fields[0]);
+                sizes.add(fields.length > 1 ? Integer.parseInt(fields[1]) : 16 * 1024);
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+        } finally {
+            IOUtils.close(reader);
+        }
+    }
+
+    private static final class TraceEntity extends ObjectEntity {
+        private final int size;
+
+        TraceEntity(int size) {
+            this.size = size;
+        }
+
+        @Override
+        protected int sizeOf() {
+            return size;
+        }
+    }
+
+}